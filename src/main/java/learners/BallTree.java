@@ -0,0 +1,187 @@
+package learners;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An exact ball tree over the stored instances, for higher-dimensional data where the boxes
+ * of a k-d tree stop pruning.
+ *
+ * Each node is a ball: a pivot (one of its rows, the one nearest the node's mean/mode) and
+ * the distance from the pivot to its farthest row. A node is split between two far-apart
+ * rows, at the median of which of the two each row is closer to. By the triangle inequality
+ * no row in a ball is nearer to the query than (distance to pivot - radius), so a search
+ * skips balls for which that exceeds the current k-th nearest neighbor. Within a leaf the
+ * same bound, |distance to pivot - row's distance to pivot|, skips individual rows.
+ */
+final class BallTree implements NeighborIndex {
+    private static final long serialVersionUID = 1L;
+
+    static final int LEAF_SIZE = 16;
+    // Slack on the triangle-inequality bound so that rounding in the square roots never prunes a tie
+    static final double BOUND_SLACK = 1e-9;
+
+    final InstanceSpace space;
+    final int[] order;
+
+    // Node n covers order[nodeStart[n], nodeEnd[n]). Leaves have nodeLeft[n] == -1.
+    int nodeCount;
+    int[] nodeStart;
+    int[] nodeEnd;
+    int[] nodeLeft;
+    int[] nodeRight;
+    int[] pivot;
+    double[] radius;
+    double[] leafPivotDistance; // by position in order: the row's distance to its leaf's pivot
+
+    BallTree(InstanceSpace space) {
+        this.space = space;
+        order = new int[space.rowCount];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        int capacity = 2 * (space.rowCount / (LEAF_SIZE / 2) + 1);
+        nodeStart = new int[capacity];
+        nodeEnd = new int[capacity];
+        nodeLeft = new int[capacity];
+        nodeRight = new int[capacity];
+        pivot = new int[capacity];
+        radius = new double[capacity];
+        leafPivotDistance = new double[space.rowCount];
+        if (space.rowCount > 0)
+            build(0, space.rowCount, new double[space.rowCount]);
+        pivot = Arrays.copyOf(pivot, nodeCount);
+        radius = Arrays.copyOf(radius, nodeCount);
+    }
+
+    int build(int start, int end, double[] keys) {
+        int node = nodeCount++;
+        nodeStart[node] = start;
+        nodeEnd[node] = end;
+        nodeLeft[node] = -1;
+        nodeRight[node] = -1;
+
+        int center = nearestTo(centerOf(start, end), start, end);
+        pivot[node] = center;
+        int farthest = center;
+        double farthestDistance = 0;
+        for (int i = start; i < end; i++) {
+            double d = space.squaredDistance(order[i], center);
+            if (d > farthestDistance) {
+                farthestDistance = d;
+                farthest = order[i];
+            }
+        }
+        radius[node] = Math.sqrt(farthestDistance);
+        if (end - start <= LEAF_SIZE || farthestDistance == 0) {
+            for (int i = start; i < end; i++)
+                leafPivotDistance[i] = Math.sqrt(space.squaredDistance(order[i], center));
+            return node;
+        }
+
+        // Split between the farthest row and the row farthest from it
+        int a = farthest;
+        int b = a;
+        double bDistance = -1;
+        for (int i = start; i < end; i++) {
+            double d = space.squaredDistance(order[i], a);
+            if (d > bDistance) {
+                bDistance = d;
+                b = order[i];
+            }
+        }
+        for (int i = start; i < end; i++)
+            keys[i] = Math.sqrt(space.squaredDistance(order[i], a)) - Math.sqrt(space.squaredDistance(order[i], b));
+        int mid = (start + end) >>> 1;
+        NeighborIndex.select(order, keys, start, end, mid);
+        nodeLeft[node] = build(start, mid, keys);
+        nodeRight[node] = build(mid, end, keys);
+        return node;
+    }
+
+    // The per-attribute mean (continuous) or mode (nominal) of the node's rows, as a query
+    double[] centerOf(int start, int end) {
+        int dims = space.dims;
+        double[] center = new double[dims];
+        for (int col = 0; col < dims; col++) {
+            if (space.nominal[col]) {
+                HashMap<Double, Integer> counts = new HashMap<Double, Integer>();
+                double mode = Double.NaN;
+                int modeCount = 0;
+                for (int i = start; i < end; i++) {
+                    double v = space.values[order[i] * dims + col];
+                    if (v != v)
+                        continue;
+                    int count = counts.merge(v, 1, Integer::sum);
+                    if (count > modeCount) {
+                        modeCount = count;
+                        mode = v;
+                    }
+                }
+                center[col] = mode;
+            } else {
+                double sum = 0;
+                int count = 0;
+                for (int i = start; i < end; i++) {
+                    double v = space.values[order[i] * dims + col];
+                    if (v == v) {
+                        sum += v;
+                        count++;
+                    }
+                }
+                center[col] = count > 0 ? sum / count : Double.NaN;
+            }
+        }
+        return center;
+    }
+
+    int nearestTo(double[] query, int start, int end) {
+        int nearest = order[start];
+        double nearestDistance = Double.POSITIVE_INFINITY;
+        for (int i = start; i < end; i++) {
+            double d = space.squaredDistance(query, order[i]);
+            if (d < nearestDistance) {
+                nearestDistance = d;
+                nearest = order[i];
+            }
+        }
+        return nearest;
+    }
+
+    // A lower bound on the squared distance from the query to any row in the node, given the
+    // query's distance to the node's pivot
+    double lowerBound(int node, double pivotDistance) {
+        double gap = pivotDistance - radius[node] - BOUND_SLACK;
+        return gap > 0 ? gap * gap : 0;
+    }
+
+    @Override
+    public void search(double[] query, NeighborHeap heap) {
+        if (nodeCount > 0)
+            search(0, Math.sqrt(space.squaredDistance(query, pivot[0])), query, heap);
+    }
+
+    void search(int node, double pivotDistance, double[] query, NeighborHeap heap) {
+        if (lowerBound(node, pivotDistance) > heap.worstDistance())
+            return;
+        if (nodeLeft[node] < 0) {
+            for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+                double gap = Math.abs(pivotDistance - leafPivotDistance[i]) - BOUND_SLACK;
+                if (gap > 0 && gap * gap > heap.worstDistance())
+                    continue;
+                heap.offer(space.squaredDistance(query, order[i], heap.worstDistance()), order[i]);
+            }
+            return;
+        }
+        int left = nodeLeft[node];
+        int right = nodeRight[node];
+        double leftDistance = Math.sqrt(space.squaredDistance(query, pivot[left]));
+        double rightDistance = Math.sqrt(space.squaredDistance(query, pivot[right]));
+        if (leftDistance - radius[left] <= rightDistance - radius[right]) {
+            search(left, leftDistance, query, heap);
+            search(right, rightDistance, query, heap);
+        } else {
+            search(right, rightDistance, query, heap);
+            search(left, leftDistance, query, heap);
+        }
+    }
+}
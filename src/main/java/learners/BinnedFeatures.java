@@ -0,0 +1,136 @@
+package learners;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import toolkit.DataMatrix;
+
+/**
+ * A read-only, pre-binned copy of a feature matrix used by the tree learners.
+ *
+ * Each continuous column is cut into at most maxBins quantile bins and each nominal column
+ * uses its value indices directly, so every cell fits in a byte. The bin code binCount[col]
+ * (one past the last value bin) is reserved for missing values. Codes are stored column by
+ * column because split search always walks one feature at a time.
+ */
+class BinnedFeatures {
+    static final int MAX_BINS = 255;
+
+    final int rowCount;
+    final int colCount;
+    final boolean[] nominal;
+    final int[] binCount;
+    final double[][] upperBoundByColAndBin; // null for nominal columns
+    final byte[][] binByColAndRow;
+
+    private BinnedFeatures(int rowCount, int colCount) {
+        this.rowCount = rowCount;
+        this.colCount = colCount;
+        nominal = new boolean[colCount];
+        binCount = new int[colCount];
+        upperBoundByColAndBin = new double[colCount][];
+        binByColAndRow = new byte[colCount][];
+    }
+
+    // Bins every column of the matrix (columns are binned in parallel). maxBins must be
+    // between 2 and MAX_BINS.
+    static BinnedFeatures fit(DataMatrix featuresOnlyDataMatrix, int maxBins) throws Exception {
+        if (maxBins < 2 || maxBins > MAX_BINS)
+            throw new Exception("The number of bins must be between 2 and " + MAX_BINS);
+        boolean[] hasMissingValues = new boolean[featuresOnlyDataMatrix.getColCount()];
+        for (int col = 0; col < featuresOnlyDataMatrix.getColCount(); col++) {
+            if (featuresOnlyDataMatrix.getValueCountForAttributeAtColumn(col) > MAX_BINS)
+                throw new Exception("Nominal attribute " + featuresOnlyDataMatrix.getAttributeNameAtColumn(col)
+                        + " has more than " + MAX_BINS + " values");
+            hasMissingValues[col] = featuresOnlyDataMatrix.hasMissingValues(col);
+        }
+        BinnedFeatures binned = new BinnedFeatures(featuresOnlyDataMatrix.getRowCount(), featuresOnlyDataMatrix.getColCount());
+        IntStream.range(0, binned.colCount).parallel()
+                .forEach(col -> binned.fitColumn(featuresOnlyDataMatrix, col, hasMissingValues[col], maxBins));
+        return binned;
+    }
+
+    // Columns with no missing values are binned without testing each value for MISSING
+    void fitColumn(DataMatrix featuresOnlyDataMatrix, int col, boolean hasMissingValues, int maxBins) {
+        byte[] bins = new byte[rowCount];
+        int valueCount = featuresOnlyDataMatrix.getValueCountForAttributeAtColumn(col);
+        if (valueCount > 0) {
+            nominal[col] = true;
+            binCount[col] = valueCount;
+            if (!hasMissingValues) {
+                for (int row = 0; row < rowCount; row++)
+                    bins[row] = (byte) featuresOnlyDataMatrix.getValueAt(row, col);
+            } else {
+                for (int row = 0; row < rowCount; row++) {
+                    double v = featuresOnlyDataMatrix.getValueAt(row, col);
+                    bins[row] = (byte) (v == DataMatrix.MISSING ? valueCount : (int) v);
+                }
+            }
+        } else {
+            double[] bounds = quantileUpperBounds(featuresOnlyDataMatrix, col, hasMissingValues, maxBins);
+            upperBoundByColAndBin[col] = bounds;
+            binCount[col] = bounds.length;
+            if (!hasMissingValues) {
+                for (int row = 0; row < rowCount; row++)
+                    bins[row] = (byte) binOf(bounds, featuresOnlyDataMatrix.getValueAt(row, col));
+            } else {
+                for (int row = 0; row < rowCount; row++) {
+                    double v = featuresOnlyDataMatrix.getValueAt(row, col);
+                    bins[row] = (byte) (v == DataMatrix.MISSING ? bounds.length : binOf(bounds, v));
+                }
+            }
+        }
+        binByColAndRow[col] = bins;
+    }
+
+    // Chooses bin upper bounds so that each bin holds roughly the same number of values.
+    // Bounds fall midway between neighbouring distinct values; the last bound is infinite.
+    private double[] quantileUpperBounds(DataMatrix featuresOnlyDataMatrix, int col, boolean hasMissingValues, int maxBins) {
+        double[] values = new double[rowCount];
+        int n = 0;
+        if (!hasMissingValues) {
+            for (; n < rowCount; n++)
+                values[n] = featuresOnlyDataMatrix.getValueAt(n, col);
+        } else {
+            for (int row = 0; row < rowCount; row++) {
+                double v = featuresOnlyDataMatrix.getValueAt(row, col);
+                if (v != DataMatrix.MISSING)
+                    values[n++] = v;
+            }
+        }
+        Arrays.sort(values, 0, n);
+
+        double[] bounds = new double[maxBins];
+        int boundCount = 0;
+        for (int i = 0; i < n && boundCount < maxBins - 1; ) {
+            int j = i;
+            while (j < n && values[j] == values[i])
+                j++;
+            if (j < n && (double) j * maxBins >= (double) n * (boundCount + 1))
+                bounds[boundCount++] = values[i] + (values[j] - values[i]) / 2;
+            i = j;
+        }
+        bounds[boundCount++] = Double.POSITIVE_INFINITY;
+        return Arrays.copyOf(bounds, boundCount);
+    }
+
+    // Returns the first bin whose upper bound is at least v
+    static int binOf(double[] bounds, double v) {
+        int lo = 0;
+        int hi = bounds.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (v <= bounds[mid])
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
+    // Returns the bin code of the specified cell (binCount[col] means missing)
+    int getBin(int col, int row) { return binByColAndRow[col][row] & 0xFF; }
+
+    // Returns the number of bin codes for the column, including the missing bin
+    int getCodeCount(int col) { return binCount[col] + 1; }
+}
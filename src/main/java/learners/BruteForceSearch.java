@@ -0,0 +1,41 @@
+package learners;
+
+/**
+ * Exact neighbor search by comparing each query with every stored row, for data where an
+ * index does not pay for itself.
+ *
+ * Batches are blocked: a block of stored rows small enough to stay in cache is compared
+ * with every query of the batch before moving on to the next block. Each distance is
+ * abandoned as soon as its running sum exceeds the query's current k-th best.
+ */
+final class BruteForceSearch implements NeighborIndex {
+    private static final long serialVersionUID = 1L;
+
+    // Stored rows compared with every query of a batch before moving on
+    static final int ROW_BLOCK = 512;
+
+    final InstanceSpace space;
+
+    BruteForceSearch(InstanceSpace space) {
+        this.space = space;
+    }
+
+    @Override
+    public void search(double[] query, NeighborHeap heap) {
+        for (int row = 0; row < space.rowCount; row++)
+            heap.offer(space.squaredDistance(query, row, heap.worstDistance()), row);
+    }
+
+    @Override
+    public void searchBatch(double[][] queries, NeighborHeap[] heaps) {
+        for (int blockStart = 0; blockStart < space.rowCount; blockStart += ROW_BLOCK) {
+            int blockEnd = Math.min(blockStart + ROW_BLOCK, space.rowCount);
+            for (int q = 0; q < queries.length; q++) {
+                double[] query = queries[q];
+                NeighborHeap heap = heaps[q];
+                for (int row = blockStart; row < blockEnd; row++)
+                    heap.offer(space.squaredDistance(query, row, heap.worstDistance()), row);
+            }
+        }
+    }
+}
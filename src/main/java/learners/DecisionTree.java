@@ -1,20 +1,551 @@
 package learners;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
 import toolkit.DataMatrix;
 import toolkit.SupervisedLearner;
 
+/**
+ * A binary decision tree grown from per-node histograms.
+ *
+ * The features are binned once per call to train (see BinnedFeatures), so finding the best
+ * split of a node costs O(rows + bins) per feature instead of a sort. Each node's histogram
+ * holds, for every feature and bin, the class counts (nominal label) or the weight and
+ * weighted label sum (continuous label). Only the smaller child of a split is histogrammed
+ * from its rows; the larger child's histogram is the parent's minus the smaller one.
+ *
+ * Nominal labels are split on Gini impurity and predict the majority class. Continuous
+ * labels are split on variance reduction and predict the mean. Continuous features split on
+ * value <= threshold, nominal features split one value against the rest, and missing values
+ * are sent to whichever side gave the better split (or the heavier side if none were seen).
+ *
+ * Growth runs on the fork-join pool train is called from (the common pool when called from
+ * outside one): large nodes grow their two children as separate tasks, and histogram
+ * building and split search fan out over the features. Ties between features go to the
+ * lowest column, so the tree does not depend on the thread schedule.
+ * Once grown, the tree is compiled into flat arrays (one slot per node, siblings adjacent)
+ * and prediction walks those arrays instead of node objects.
+ *
+ * For ensembles, a tree can be trained on a weighted subset of rows (a bootstrap sample is
+ * just row indices with repeat counts as weights) and can consider only a random subset of
+ * the features at each split. The subset of a node is drawn from a seed derived from the
+ * node's position in the tree, so it too is independent of the thread schedule.
+ */
 public class DecisionTree extends SupervisedLearner {
+    private static final long serialVersionUID = 1L;
+
+    static final double MIN_GAIN = 1e-9;
+
+    // Nodes with at least this many rows grow their children in parallel
+    static final int PARALLEL_NODE_ROWS = 4096;
+    // Nodes with at least this many cells (rows * features) fan out over features
+    static final long PARALLEL_FEATURE_CELLS = 1 << 16;
+    // Rows walked through the tree together by predictBatchLabelsFromFeatures
+    static final int BATCH_BLOCK_ROWS = 256;
+
+    static final byte NOMINAL_SPLIT = 1;
+    static final byte MISSING_GOES_LEFT = 2;
+
+    int maxDepth;
+    int minInstancesPerLeaf;
+    int maxBins;
+    int featuresPerSplit; // 0 means every feature is considered at every split
+    long seed;
+
+    // Training state
+    BinnedFeatures binnedFeatures;
+    int[] featureOffset;
+    int histogramLength;
+    int statsWidth;
+    boolean classification;
+    int[] classByRow;
+    double[] targetByRow;
+    double[] weightByRow;
+
+    // The compiled tree. Node 0 is the root. Node n is a leaf when splitFeature[n] < 0;
+    // otherwise its children are leftChild[n] and leftChild[n] + 1.
+    int[] splitFeature;
+    double[] splitThreshold;
+    byte[] splitFlags;
+    int[] leftChild;
+    double[] nodeValue;
+
     public DecisionTree() {
-        throw new UnsupportedOperationException("The DecisionTree class has not been implemented yet.");
+        this(Integer.MAX_VALUE, 1, BinnedFeatures.MAX_BINS);
+    }
+
+    public DecisionTree(int maxDepth, int minInstancesPerLeaf, int maxBins) {
+        this(maxDepth, minInstancesPerLeaf, maxBins, 0, 0);
+    }
+
+    public DecisionTree(int maxDepth, int minInstancesPerLeaf, int maxBins, int featuresPerSplit, long seed) {
+        this.maxDepth = maxDepth;
+        this.minInstancesPerLeaf = minInstancesPerLeaf;
+        this.maxBins = maxBins;
+        this.featuresPerSplit = featuresPerSplit;
+        this.seed = seed;
+    }
+
+    static final class Node {
+        int feature = -1; // -1 marks a leaf
+        boolean nominal;
+        double threshold; // upper bound for continuous features, value index for nominal ones
+        boolean missingGoesLeft;
+        Node left;
+        Node right;
+        double value; // the prediction at a leaf
+    }
+
+    // The winning split of a node
+    static final class Split {
+        int feature = -1;
+        int bin;
+        boolean missingGoesLeft;
+        double gain = MIN_GAIN;
+    }
+
+    final class GrowTask extends RecursiveTask<Node> {
+        private static final long serialVersionUID = 1L;
+
+        final int[] rows;
+        final int start;
+        final int end;
+        final double[] histogram;
+        final int depth;
+        final long nodeSeed;
+
+        GrowTask(int[] rows, int start, int end, double[] histogram, int depth, long nodeSeed) {
+            this.rows = rows;
+            this.start = start;
+            this.end = end;
+            this.histogram = histogram;
+            this.depth = depth;
+            this.nodeSeed = nodeSeed;
+        }
+
+        @Override
+        protected Node compute() {
+            return grow(rows, start, end, histogram, depth, nodeSeed);
+        }
     }
 
     @Override
     public void train(DataMatrix featuresOnlyDataMatrix, DataMatrix labelsOnlyDataMatrix) throws Exception {
+        int[] rowIndices = new int[labelsOnlyDataMatrix.getRowCount()];
+        double[] rowWeights = new double[rowIndices.length];
+        for (int row = 0; row < rowIndices.length; row++) {
+            rowIndices[row] = row;
+            rowWeights[row] = 1.0;
+        }
+        train(featuresOnlyDataMatrix, labelsOnlyDataMatrix, rowIndices, rowWeights);
+    }
+
+    @Override
+    public void train(DataMatrix featuresOnlyDataMatrix, DataMatrix labelsOnlyDataMatrix, int[] rowIndices, double[] rowWeights) throws Exception {
+        if (featuresOnlyDataMatrix.getRowCount() != labelsOnlyDataMatrix.getRowCount())
+            throw new Exception("Expected the features and labels to have the same number of rows");
+        train(BinnedFeatures.fit(featuresOnlyDataMatrix, maxBins), labelsOnlyDataMatrix, rowIndices, rowWeights);
+    }
+
+    // Trains on features that have already been binned, so an ensemble can bin them only once
+    void train(BinnedFeatures binned, DataMatrix labelsOnlyDataMatrix, int[] rowIndices, double[] rowWeights) throws Exception {
+        if (labelsOnlyDataMatrix.getColCount() != 1)
+            throw new Exception("Sorry, DecisionTree currently only supports one-dimensional labels");
+
+        binnedFeatures = binned;
+        featureOffset = new int[binnedFeatures.colCount];
+        histogramLength = 0;
+        int labelValues = labelsOnlyDataMatrix.getValueCountForAttributeAtColumn(0);
+        classification = labelValues > 0;
+        statsWidth = classification ? labelValues : 2;
+        for (int col = 0; col < binnedFeatures.colCount; col++) {
+            featureOffset[col] = histogramLength;
+            histogramLength += binnedFeatures.getCodeCount(col) * statsWidth;
+        }
+
+        // Rows whose label is missing (or whose weight is zero) take no part in training.
+        // A row listed more than once gets the sum of its weights.
+        int rowCount = labelsOnlyDataMatrix.getRowCount();
+        int[] rows = new int[rowIndices.length];
+        int usedRowCount = 0;
+        classByRow = classification ? new int[rowCount] : null;
+        targetByRow = classification ? null : new double[rowCount];
+        weightByRow = new double[rowCount];
+        for (int i = 0; i < rowIndices.length; i++) {
+            int row = rowIndices[i];
+            double label = labelsOnlyDataMatrix.getValueAt(row, 0);
+            if (label == DataMatrix.MISSING || rowWeights[i] <= 0)
+                continue;
+            if (weightByRow[row] == 0) {
+                if (classification)
+                    classByRow[row] = (int) label;
+                else
+                    targetByRow[row] = label;
+                rows[usedRowCount++] = row;
+            }
+            weightByRow[row] += rowWeights[i];
+        }
+        if (usedRowCount == 0)
+            throw new Exception("Expected at least one row with a label");
+
+        double[] histogram = buildHistogram(rows, 0, usedRowCount);
+        GrowTask root = new GrowTask(rows, 0, usedRowCount, histogram, 0, seed);
+        compile(ForkJoinTask.inForkJoinPool() ? root.invoke() : ForkJoinPool.commonPool().invoke(root));
+
+        // The binned copy is only needed while growing
+        binnedFeatures = null;
+        classByRow = null;
+        targetByRow = null;
+        weightByRow = null;
+    }
+
+    // Accumulates the label statistics of rows[start, end) into a new histogram
+    double[] buildHistogram(int[] rows, int start, int end) {
+        double[] histogram = new double[histogramLength];
+        if (isParallelNode(start, end)) {
+            IntStream.range(0, binnedFeatures.colCount).parallel().forEach(col -> addToHistogram(histogram, col, rows, start, end));
+        } else {
+            for (int col = 0; col < binnedFeatures.colCount; col++)
+                addToHistogram(histogram, col, rows, start, end);
+        }
+        return histogram;
+    }
+
+    // Fills one feature's section of the histogram, so features can be filled concurrently
+    void addToHistogram(double[] histogram, int col, int[] rows, int start, int end) {
+        byte[] bins = binnedFeatures.binByColAndRow[col];
+        int offset = featureOffset[col];
+        if (classification) {
+            for (int i = start; i < end; i++) {
+                int row = rows[i];
+                histogram[offset + (bins[row] & 0xFF) * statsWidth + classByRow[row]] += weightByRow[row];
+            }
+        } else {
+            for (int i = start; i < end; i++) {
+                int row = rows[i];
+                int index = offset + (bins[row] & 0xFF) * 2;
+                double w = weightByRow[row];
+                histogram[index] += w;
+                histogram[index + 1] += w * targetByRow[row];
+            }
+        }
+    }
 
+    boolean isParallelNode(int start, int end) {
+        return (long) (end - start) * binnedFeatures.colCount >= PARALLEL_FEATURE_CELLS;
+    }
+
+    Node grow(int[] rows, int start, int end, double[] histogram, int depth, long nodeSeed) {
+        double[] totals = totalsOf(rows, start, end, histogram);
+
+        Node node = new Node();
+        node.value = leafValue(totals);
+        if (depth >= maxDepth || weightOf(totals, 0) < 2 * minInstancesPerLeaf || isPure(totals))
+            return node;
+
+        SplittableRandom nodeRandom = new SplittableRandom(nodeSeed);
+        Split best = findBestSplit(start, end, histogram, totals, candidateFeatures(nodeRandom));
+        if (best.feature < 0)
+            return node;
+
+        node.feature = best.feature;
+        node.nominal = binnedFeatures.nominal[best.feature];
+        node.threshold = node.nominal ? best.bin : binnedFeatures.upperBoundByColAndBin[best.feature][best.bin];
+        node.missingGoesLeft = best.missingGoesLeft;
+
+        int mid = partition(rows, start, end, best);
+        boolean leftIsSmaller = mid - start <= end - mid;
+        double[] smallerHistogram = leftIsSmaller ? buildHistogram(rows, start, mid) : buildHistogram(rows, mid, end);
+        for (int index = 0; index < histogramLength; index++)
+            histogram[index] -= smallerHistogram[index];
+        double[] leftHistogram = leftIsSmaller ? smallerHistogram : histogram;
+        double[] rightHistogram = leftIsSmaller ? histogram : smallerHistogram;
+        long leftSeed = nodeRandom.nextLong();
+        long rightSeed = nodeRandom.nextLong();
+        if (end - start >= PARALLEL_NODE_ROWS) {
+            GrowTask leftTask = new GrowTask(rows, start, mid, leftHistogram, depth + 1, leftSeed);
+            GrowTask rightTask = new GrowTask(rows, mid, end, rightHistogram, depth + 1, rightSeed);
+            leftTask.fork();
+            node.right = rightTask.compute();
+            node.left = leftTask.join();
+        } else {
+            node.left = grow(rows, start, mid, leftHistogram, depth + 1, leftSeed);
+            node.right = grow(rows, mid, end, rightHistogram, depth + 1, rightSeed);
+        }
+        return node;
+    }
+
+    // Returns the columns to consider at a node, in increasing order
+    int[] candidateFeatures(SplittableRandom nodeRandom) {
+        int colCount = binnedFeatures.colCount;
+        int[] cols = new int[colCount];
+        for (int col = 0; col < colCount; col++)
+            cols[col] = col;
+        if (featuresPerSplit <= 0 || featuresPerSplit >= colCount)
+            return cols;
+        // A partial Fisher-Yates shuffle picks the subset
+        for (int i = 0; i < featuresPerSplit; i++) {
+            int j = i + nodeRandom.nextInt(colCount - i);
+            int tmp = cols[i];
+            cols[i] = cols[j];
+            cols[j] = tmp;
+        }
+        int[] subset = Arrays.copyOf(cols, featuresPerSplit);
+        Arrays.sort(subset);
+        return subset;
+    }
+
+    Split findBestSplit(int start, int end, double[] histogram, double[] totals, int[] cols) {
+        double parentScore = score(totals, 0);
+        if (!isParallelNode(start, end)) {
+            Split best = new Split();
+            double[] left = new double[statsWidth];
+            double[] right = new double[statsWidth];
+            for (int col : cols)
+                evaluateFeature(col, histogram, totals, parentScore, left, right, best);
+            return best;
+        }
+        return Arrays.stream(cols).parallel()
+                .mapToObj(col -> {
+                    Split split = new Split();
+                    evaluateFeature(col, histogram, totals, parentScore, new double[statsWidth], new double[statsWidth], split);
+                    return split;
+                })
+                .reduce(new Split(), DecisionTree::better);
+    }
+
+    // Picks the higher gain, breaking ties toward the lower column as the sequential scan does
+    static Split better(Split a, Split b) {
+        if (b.gain > a.gain || (b.gain == a.gain && b.feature >= 0 && (a.feature < 0 || b.feature < a.feature)))
+            return b;
+        return a;
+    }
+
+    // Every feature's bins (including the missing bin) cover all of a node's rows, so the
+    // node totals can be read off the first feature's histogram
+    double[] totalsOf(int[] rows, int start, int end, double[] histogram) {
+        double[] totals = new double[statsWidth];
+        if (binnedFeatures.colCount > 0) {
+            for (int index = 0; index < binnedFeatures.getCodeCount(0) * statsWidth; index++)
+                totals[index % statsWidth] += histogram[index];
+            return totals;
+        }
+        for (int i = start; i < end; i++) {
+            int row = rows[i];
+            if (classification) {
+                totals[classByRow[row]] += weightByRow[row];
+            } else {
+                totals[0] += weightByRow[row];
+                totals[1] += weightByRow[row] * targetByRow[row];
+            }
+        }
+        return totals;
+    }
+
+    // Scans the bins of one feature and records the split in best if it beats it
+    void evaluateFeature(int col, double[] histogram, double[] totals, double parentScore,
+                         double[] left, double[] right, Split best) {
+        int offset = featureOffset[col];
+        int bins = binnedFeatures.binCount[col];
+        int missingIndex = offset + bins * statsWidth;
+        boolean hasMissing = weightOf(histogram, missingIndex) > 0;
+        boolean nominal = binnedFeatures.nominal[col];
+
+        Arrays.fill(left, 0);
+        int lastBin = nominal ? bins : bins - 1;
+        for (int bin = 0; bin < lastBin; bin++) {
+            int index = offset + bin * statsWidth;
+            if (nominal) {
+                if (weightOf(histogram, index) == 0)
+                    continue;
+                System.arraycopy(histogram, index, left, 0, statsWidth);
+            } else {
+                for (int s = 0; s < statsWidth; s++)
+                    left[s] += histogram[index + s];
+            }
+            for (int missingGoesLeft = 0; missingGoesLeft < (hasMissing ? 2 : 1); missingGoesLeft++) {
+                if (missingGoesLeft == 1) {
+                    for (int s = 0; s < statsWidth; s++)
+                        left[s] += histogram[missingIndex + s];
+                }
+                for (int s = 0; s < statsWidth; s++)
+                    right[s] = totals[s] - left[s];
+                double leftWeight = weightOf(left, 0);
+                double rightWeight = weightOf(right, 0);
+                if (leftWeight >= minInstancesPerLeaf && rightWeight >= minInstancesPerLeaf) {
+                    double gain = score(left, 0) + score(right, 0) - parentScore;
+                    if (gain > best.gain) {
+                        best.gain = gain;
+                        best.feature = col;
+                        best.bin = bin;
+                        best.missingGoesLeft = hasMissing ? missingGoesLeft == 1 : leftWeight >= rightWeight;
+                    }
+                }
+                if (missingGoesLeft == 1) {
+                    for (int s = 0; s < statsWidth; s++)
+                        left[s] -= histogram[missingIndex + s];
+                }
+            }
+        }
+    }
+
+    // Moves the rows that go left to the front of rows[start, end) and returns the boundary
+    int partition(int[] rows, int start, int end, Split split) {
+        byte[] bins = binnedFeatures.binByColAndRow[split.feature];
+        int missingBin = binnedFeatures.binCount[split.feature];
+        boolean nominal = binnedFeatures.nominal[split.feature];
+        int i = start;
+        int j = end - 1;
+        while (i <= j) {
+            int bin = bins[rows[i]] & 0xFF;
+            boolean goesLeft = bin == missingBin ? split.missingGoesLeft : (nominal ? bin == split.bin : bin <= split.bin);
+            if (goesLeft) {
+                i++;
+            } else {
+                int tmp = rows[i];
+                rows[i] = rows[j];
+                rows[j] = tmp;
+                j--;
+            }
+        }
+        return i;
+    }
+
+    // The total weight of the statistics starting at index
+    double weightOf(double[] stats, int index) {
+        if (!classification)
+            return stats[index];
+        double weight = 0;
+        for (int s = 0; s < statsWidth; s++)
+            weight += stats[index + s];
+        return weight;
+    }
+
+    // Sum of squared class weights (or squared label sum) over total weight. Maximizing the sum
+    // of the children's scores minimizes their weighted Gini impurity (or squared error).
+    double score(double[] stats, int index) {
+        double weight = weightOf(stats, index);
+        if (weight <= 0)
+            return 0;
+        if (!classification)
+            return stats[index + 1] * stats[index + 1] / weight;
+        double sumOfSquares = 0;
+        for (int s = 0; s < statsWidth; s++)
+            sumOfSquares += stats[index + s] * stats[index + s];
+        return sumOfSquares / weight;
+    }
+
+    boolean isPure(double[] totals) {
+        if (!classification)
+            return false;
+        int nonZero = 0;
+        for (int s = 0; s < statsWidth; s++) {
+            if (totals[s] > 0)
+                nonZero++;
+        }
+        return nonZero <= 1;
+    }
+
+    double leafValue(double[] totals) {
+        if (!classification)
+            return totals[0] > 0 ? totals[1] / totals[0] : 0;
+        int majority = 0;
+        for (int s = 1; s < statsWidth; s++) {
+            if (totals[s] > totals[majority])
+                majority = s;
+        }
+        return majority;
+    }
+
+    // Lays the grown tree out breadth-first in flat arrays, with each node's children adjacent
+    void compile(Node root) {
+        List<Node> order = new ArrayList<Node>();
+        ArrayDeque<Node> queue = new ArrayDeque<Node>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            order.add(node);
+            if (node.feature >= 0) {
+                queue.add(node.left);
+                queue.add(node.right);
+            }
+        }
+
+        int nodeCount = order.size();
+        splitFeature = new int[nodeCount];
+        splitThreshold = new double[nodeCount];
+        splitFlags = new byte[nodeCount];
+        leftChild = new int[nodeCount];
+        nodeValue = new double[nodeCount];
+        int nextChild = 1;
+        for (int n = 0; n < nodeCount; n++) {
+            Node node = order.get(n);
+            splitFeature[n] = node.feature;
+            nodeValue[n] = node.value;
+            if (node.feature >= 0) {
+                splitThreshold[n] = node.threshold;
+                splitFlags[n] = (byte) ((node.nominal ? NOMINAL_SPLIT : 0) | (node.missingGoesLeft ? MISSING_GOES_LEFT : 0));
+                leftChild[n] = nextChild;
+                nextChild += 2;
+            }
+        }
+    }
+
+    // Returns the child of an internal node that the feature vector goes to
+    int step(int node, double[] featureVector) {
+        double v = featureVector[splitFeature[node]];
+        int flags = splitFlags[node];
+        boolean goesLeft;
+        if (v == DataMatrix.MISSING)
+            goesLeft = (flags & MISSING_GOES_LEFT) != 0;
+        else if ((flags & NOMINAL_SPLIT) != 0)
+            goesLeft = v == splitThreshold[node];
+        else
+            goesLeft = v <= splitThreshold[node];
+        return leftChild[node] + (goesLeft ? 0 : 1);
     }
 
     @Override
     public void predictInstanceLabelsFromFeatures(double[] featureVector, double[] arrayInWhichToPutLabels) throws Exception {
+        int node = 0;
+        while (splitFeature[node] >= 0)
+            node = step(node, featureVector);
+        arrayInWhichToPutLabels[0] = nodeValue[node];
+    }
 
+    // Walks blocks of rows down the tree one level at a time, so the lookups of different
+    // rows overlap instead of waiting on each other. Blocks are scored in parallel.
+    @Override
+    public void predictBatchLabelsFromFeatures(double[][] featureVectors, double[][] arrayInWhichToPutLabels) throws Exception {
+        int blockCount = (featureVectors.length + BATCH_BLOCK_ROWS - 1) / BATCH_BLOCK_ROWS;
+        IntStream blocks = IntStream.range(0, blockCount);
+        if (blockCount > 1)
+            blocks = blocks.parallel();
+        blocks.forEach(block -> {
+            int start = block * BATCH_BLOCK_ROWS;
+            int end = Math.min(start + BATCH_BLOCK_ROWS, featureVectors.length);
+            int[] nodes = new int[end - start];
+            boolean moved = true;
+            while (moved) {
+                moved = false;
+                for (int i = 0; i < nodes.length; i++) {
+                    int node = nodes[i];
+                    if (splitFeature[node] >= 0) {
+                        nodes[i] = step(node, featureVectors[start + i]);
+                        moved = true;
+                    }
+                }
+            }
+            for (int i = 0; i < nodes.length; i++)
+                arrayInWhichToPutLabels[start + i][0] = nodeValue[nodes[i]];
+        });
     }
 }
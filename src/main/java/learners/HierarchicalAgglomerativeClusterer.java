@@ -0,0 +1,323 @@
+package learners;
+
+import java.util.Arrays;
+
+import toolkit.DataMatrix;
+
+/**
+ * Hierarchical agglomerative clustering of every column of a matrix, with single,
+ * complete, average or Ward linkage. Rows are compared with the distance of InstanceSpace.
+ *
+ * Complete, average and Ward linkage use the nearest-neighbor chain algorithm: a chain of
+ * clusters, each the nearest neighbor of the one before, is followed until two clusters
+ * are each other's nearest neighbor, and they are merged. This takes O(n^2) time, and the
+ * distances are kept in a condensed upper-triangular float matrix (n(n-1)/2 entries,
+ * computed in parallel) that is updated in place by the Lance-Williams formulas. Ward
+ * linkage works on squared distances, as its update formula requires.
+ *
+ * Single linkage needs no stored matrix: its merges are the edges of a minimum spanning
+ * tree, which Prim's algorithm builds with O(n) memory by updating the distance from every
+ * row outside the tree to the tree (in parallel) each time a row joins it.
+ *
+ * The merges are sorted by height into a dendrogram, which is cut into clusterCount
+ * clusters.
+ */
+public class HierarchicalAgglomerativeClusterer {
+    // The most rows the condensed matrix can hold, as Java arrays are indexed by int
+    static final int MAX_MATRIX_ROWS = 65535;
+    // Rows outside the tree updated by one task of Prim's algorithm
+    static final int PRIM_CHUNK_ROWS = 4096;
+
+    String linkage; // "single", "complete", "average" or "ward"
+    int clusterCount;
+
+    InstanceSpace space;
+    // Merge i joins the clusters mergeLeft[i] and mergeRight[i] into cluster n + i, where
+    // clusters below n are single rows. Merges are in order of height.
+    int[] mergeLeft;
+    int[] mergeRight;
+    double[] mergeHeight;
+    int[] mergeSize;
+    int[] assignment;
+
+    public HierarchicalAgglomerativeClusterer(String linkage, int clusterCount) {
+        this.linkage = linkage;
+        this.clusterCount = clusterCount;
+    }
+
+    /**
+     * Builds the dendrogram of the rows of the matrix and cuts it into clusterCount
+     * clusters.
+     */
+    public void cluster(DataMatrix dataMatrix) throws Exception {
+        if (!linkage.equals("single") && !linkage.equals("complete") && !linkage.equals("average") && !linkage.equals("ward"))
+            throw new Exception("Unrecognized linkage: " + linkage);
+        if (clusterCount <= 0 || clusterCount > dataMatrix.getRowCount())
+            throw new Exception("The number of clusters must be between 1 and the number of rows");
+        if (!linkage.equals("single") && dataMatrix.getRowCount() > MAX_MATRIX_ROWS)
+            throw new Exception("Sorry, " + linkage + " linkage supports at most " + MAX_MATRIX_ROWS + " rows (single linkage has no limit)");
+
+        int rowCount = dataMatrix.getRowCount();
+        int[] rows = new int[rowCount];
+        for (int row = 0; row < rowCount; row++)
+            rows[row] = row;
+        space = InstanceSpace.fit(dataMatrix, rows);
+
+        // Each merge is first recorded as a row of each cluster and the height
+        int[] rowA = new int[rowCount - 1];
+        int[] rowB = new int[rowCount - 1];
+        double[] height = new double[rowCount - 1];
+        if (linkage.equals("single"))
+            minimumSpanningTree(rowA, rowB, height);
+        else
+            nearestNeighborChain(rowA, rowB, height);
+        buildDendrogram(rowA, rowB, height);
+        assignment = cut(clusterCount);
+    }
+
+    // Prim's algorithm. Edge i joins rowA[i] to the tree at height[i].
+    void minimumSpanningTree(int[] rowA, int[] rowB, double[] height) throws Exception {
+        int n = space.rowCount;
+        // The rows outside the tree, with the squared distance to their nearest tree row
+        int[] outside = new int[n - 1];
+        double[] nearestSquared = new double[n];
+        int[] nearestInTree = new int[n];
+        for (int i = 0; i < n - 1; i++)
+            outside[i] = i + 1;
+        Arrays.fill(nearestSquared, Double.POSITIVE_INFINITY);
+
+        int joined = 0;
+        int outsideCount = n - 1;
+        int chunkCount = (n + PRIM_CHUNK_ROWS - 1) / PRIM_CHUNK_ROWS;
+        int[] chunkBest = new int[chunkCount];
+        for (int edge = 0; edge < n - 1; edge++) {
+            double[] query = space.rowAsQuery(joined);
+            int joinedRow = joined;
+            int count = outsideCount;
+            int tasks = (count + PRIM_CHUNK_ROWS - 1) / PRIM_CHUNK_ROWS;
+            ParallelLoops.forEach(tasks, chunk -> {
+                int best = -1;
+                for (int i = chunk * PRIM_CHUNK_ROWS; i < Math.min((chunk + 1) * PRIM_CHUNK_ROWS, count); i++) {
+                    int row = outside[i];
+                    double d = space.squaredDistance(query, row, nearestSquared[row]);
+                    if (d < nearestSquared[row]) {
+                        nearestSquared[row] = d;
+                        nearestInTree[row] = joinedRow;
+                    }
+                    if (best < 0 || closer(row, outside[best], nearestSquared))
+                        best = i;
+                }
+                chunkBest[chunk] = best;
+            });
+            int best = chunkBest[0];
+            for (int chunk = 1; chunk < tasks; chunk++) {
+                if (closer(outside[chunkBest[chunk]], outside[best], nearestSquared))
+                    best = chunkBest[chunk];
+            }
+            joined = outside[best];
+            rowA[edge] = joined;
+            rowB[edge] = nearestInTree[joined];
+            height[edge] = Math.sqrt(nearestSquared[joined]);
+            outside[best] = outside[--outsideCount];
+        }
+    }
+
+    // True if row a is nearer the tree than row b, the lower row winning a tie
+    static boolean closer(int a, int b, double[] nearestSquared) {
+        return nearestSquared[a] < nearestSquared[b] || (nearestSquared[a] == nearestSquared[b] && a < b);
+    }
+
+    // The nearest-neighbor chain algorithm. Merge i joins the clusters held in rowA[i] and
+    // rowB[i]; a merged cluster is held in the slot of the lower of the two.
+    void nearestNeighborChain(int[] rowA, int[] rowB, double[] height) throws Exception {
+        int n = space.rowCount;
+        boolean ward = linkage.equals("ward");
+        float[] distances = condensedDistances(ward);
+        int[] size = new int[n];
+        Arrays.fill(size, 1);
+        // The slots still holding a cluster, in increasing order
+        int[] active = new int[n];
+        for (int i = 0; i < n; i++)
+            active[i] = i;
+        int activeCount = n;
+        int[] chain = new int[n];
+        int chainLength = 0;
+
+        for (int merge = 0; merge < n - 1; merge++) {
+            while (true) {
+                if (chainLength == 0)
+                    chain[chainLength++] = active[0];
+                int a = chain[chainLength - 1];
+                int previous = chainLength > 1 ? chain[chainLength - 2] : -1;
+                // The nearest other cluster, keeping the previous one on a tie so the chain ends
+                int nearest = previous;
+                float nearestDistance = previous >= 0 ? distances[condensedIndex(a, previous, n)] : Float.POSITIVE_INFINITY;
+                for (int i = 0; i < activeCount; i++) {
+                    int c = active[i];
+                    if (c == a)
+                        continue;
+                    float d = distances[condensedIndex(a, c, n)];
+                    if (d < nearestDistance) {
+                        nearestDistance = d;
+                        nearest = c;
+                    }
+                }
+                if (nearest == previous) {
+                    chainLength -= 2;
+                    int kept = Math.min(a, previous);
+                    int removed = Math.max(a, previous);
+                    rowA[merge] = kept;
+                    rowB[merge] = removed;
+                    height[merge] = ward ? Math.sqrt(nearestDistance) : nearestDistance;
+                    activeCount = removeActive(active, activeCount, removed);
+                    updateDistances(distances, n, kept, removed, nearestDistance, size, active, activeCount);
+                    size[kept] += size[removed];
+                    break;
+                }
+                chain[chainLength++] = nearest;
+            }
+        }
+    }
+
+    // Fills the condensed matrix, a row of it per task
+    float[] condensedDistances(boolean squared) throws Exception {
+        int n = space.rowCount;
+        float[] distances = new float[(int) ((long) n * (n - 1) / 2)];
+        ParallelLoops.forEach(n - 1, i -> {
+            double[] query = space.rowAsQuery(i);
+            int offset = condensedIndex(i, i + 1, n);
+            for (int j = i + 1; j < n; j++) {
+                double d = space.squaredDistance(query, j);
+                distances[offset + j - i - 1] = (float) (squared ? d : Math.sqrt(d));
+            }
+        });
+        return distances;
+    }
+
+    // The position of the distance between slots a and b (a != b) in the condensed matrix
+    static int condensedIndex(int a, int b, int n) {
+        int i = Math.min(a, b);
+        int j = Math.max(a, b);
+        return (int) ((long) i * (2L * n - i - 1) / 2) + j - i - 1;
+    }
+
+    static int removeActive(int[] active, int activeCount, int slot) {
+        int position = Arrays.binarySearch(active, 0, activeCount, slot);
+        System.arraycopy(active, position + 1, active, position, activeCount - position - 1);
+        return activeCount - 1;
+    }
+
+    // Lance-Williams update of the distances from the merged cluster (held in kept) to the others
+    void updateDistances(float[] distances, int n, int kept, int removed, float mergedDistance, int[] size, int[] active, int activeCount) {
+        for (int i = 0; i < activeCount; i++) {
+            int c = active[i];
+            if (c == kept)
+                continue;
+            int keptIndex = condensedIndex(kept, c, n);
+            float dKept = distances[keptIndex];
+            float dRemoved = distances[condensedIndex(removed, c, n)];
+            switch (linkage) {
+                case "complete":
+                    distances[keptIndex] = Math.max(dKept, dRemoved);
+                    break;
+                case "average":
+                    distances[keptIndex] = (size[kept] * dKept + size[removed] * dRemoved) / (size[kept] + size[removed]);
+                    break;
+                default: // ward
+                    distances[keptIndex] = ((size[kept] + size[c]) * dKept + (size[removed] + size[c]) * dRemoved - size[c] * mergedDistance)
+                            / (size[kept] + size[removed] + size[c]);
+            }
+        }
+    }
+
+    // Orders the merges by height (stably) and names the clusters they join
+    void buildDendrogram(int[] rowA, int[] rowB, double[] height) {
+        int n = space.rowCount;
+        Integer[] order = new Integer[n - 1];
+        for (int i = 0; i < n - 1; i++)
+            order[i] = i;
+        Arrays.sort(order, (x, y) -> Double.compare(height[x], height[y]));
+
+        mergeLeft = new int[n - 1];
+        mergeRight = new int[n - 1];
+        mergeHeight = new double[n - 1];
+        mergeSize = new int[n - 1];
+        int[] parent = new int[n];
+        int[] clusterOfRoot = new int[n];
+        int[] sizeOfRoot = new int[n];
+        for (int row = 0; row < n; row++) {
+            parent[row] = row;
+            clusterOfRoot[row] = row;
+            sizeOfRoot[row] = 1;
+        }
+        for (int i = 0; i < n - 1; i++) {
+            int rootA = find(parent, rowA[order[i]]);
+            int rootB = find(parent, rowB[order[i]]);
+            mergeLeft[i] = Math.min(clusterOfRoot[rootA], clusterOfRoot[rootB]);
+            mergeRight[i] = Math.max(clusterOfRoot[rootA], clusterOfRoot[rootB]);
+            mergeHeight[i] = height[order[i]];
+            mergeSize[i] = sizeOfRoot[rootA] + sizeOfRoot[rootB];
+            parent[rootB] = rootA;
+            clusterOfRoot[rootA] = n + i;
+            sizeOfRoot[rootA] = mergeSize[i];
+        }
+    }
+
+    static int find(int[] parent, int row) {
+        while (parent[row] != row) {
+            parent[row] = parent[parent[row]];
+            row = parent[row];
+        }
+        return row;
+    }
+
+    // The cluster of each row when the dendrogram is cut into count clusters, numbered in
+    // order of their first row
+    public int[] cut(int count) {
+        int n = space.rowCount;
+        int[] parent = new int[n];
+        for (int row = 0; row < n; row++)
+            parent[row] = row;
+        int[] rowOfCluster = new int[2 * n - 1];
+        for (int row = 0; row < n; row++)
+            rowOfCluster[row] = row;
+        for (int i = 0; i < n - count; i++) {
+            int rootLeft = find(parent, rowOfCluster[mergeLeft[i]]);
+            int rootRight = find(parent, rowOfCluster[mergeRight[i]]);
+            parent[rootRight] = rootLeft;
+            rowOfCluster[n + i] = rootLeft;
+        }
+        int[] labelOfRoot = new int[n];
+        Arrays.fill(labelOfRoot, -1);
+        int[] labels = new int[n];
+        int labelCount = 0;
+        for (int row = 0; row < n; row++) {
+            int root = find(parent, row);
+            if (labelOfRoot[root] < 0)
+                labelOfRoot[root] = labelCount++;
+            labels[row] = labelOfRoot[root];
+        }
+        return labels;
+    }
+
+    // The cluster of each row of the matrix, for the clusterCount given to the constructor
+    public int[] getAssignments() { return assignment; }
+
+    // The height of each merge of the dendrogram, in increasing order
+    public double[] getMergeHeights() { return mergeHeight; }
+
+    // Prints the last merges of the dendrogram and the size of each cluster
+    public void printClusters() {
+        int n = space.rowCount;
+        System.out.println("Linkage: " + linkage);
+        for (int i = Math.max(0, n - clusterCount - 5); i < n - 1; i++) {
+            System.out.println("Merge " + i + ": clusters " + mergeLeft[i] + " and " + mergeRight[i]
+                    + " into " + (n + i) + " (size " + mergeSize[i] + ") at height " + mergeHeight[i]);
+        }
+        int[] sizes = new int[clusterCount];
+        for (int cluster : assignment)
+            sizes[cluster]++;
+        for (int c = 0; c < clusterCount; c++)
+            System.out.println("Cluster " + c + ": size " + sizes[c]);
+    }
+}
@@ -0,0 +1,396 @@
+package learners;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * An approximate nearest-neighbor index: a hierarchical navigable small world graph
+ * (Malkov and Yashunin, 2016).
+ *
+ * Every stored row is a node on layer 0 and, with geometrically decreasing probability, on
+ * higher layers too. A search descends greedily from the single entry node on the top layer,
+ * then runs a best-first search with efSearch candidates on layer 0. Each node keeps up to m
+ * neighbors per upper layer and 2m on layer 0, chosen with the diversity heuristic. The
+ * neighbor lists live in int arrays: slot 0 of a list holds its length.
+ *
+ * Rows are inserted in parallel. A node's lists are only read or written while holding that
+ * node's lock, and a row that raises the top layer holds the entry lock for its whole
+ * insertion. The graph (and so the exact results) depends on the insertion schedule.
+ * The locks are not serialized: a deserialized graph is always frozen.
+ */
+final class Hnsw implements NeighborIndex {
+    private static final long serialVersionUID = 1L;
+
+    static final long LEVEL_SEED = 0x5DEECE66DL;
+
+    final InstanceSpace space;
+    final int m;
+    final int efConstruction;
+    final int efSearch;
+    final double levelMultiplier;
+
+    final int layer0Width; // 1 + 2m
+    final int[] layer0;
+    final int[][] upperLayers; // upperLayers[node] holds the lists of layers 1..level, each 1 + m wide
+    final transient Object[] locks;
+
+    final transient Object entryLock = new Object();
+    volatile int entryPoint = -1;
+    volatile int maxLevel = -1;
+    // Set once every row is inserted; from then on the lists are read without locking
+    boolean frozen;
+
+    // Per-thread scratch space for searches
+    transient ThreadLocal<SearchState> searchStates;
+
+    Hnsw(InstanceSpace space, int m, int efConstruction, int efSearch) throws Exception {
+        if (m < 2 || efConstruction < 1 || efSearch < 1)
+            throw new Exception("HNSW expects M >= 2, efConstruction >= 1 and efSearch >= 1");
+        this.space = space;
+        this.m = m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = efSearch;
+        levelMultiplier = 1 / Math.log(m);
+        int n = space.rowCount;
+        layer0Width = 1 + 2 * m;
+        layer0 = new int[n * layer0Width];
+        upperLayers = new int[n][];
+        locks = new Object[n];
+        searchStates = newSearchStates();
+
+        SplittableRandom random = new SplittableRandom(LEVEL_SEED);
+        for (int node = 0; node < n; node++) {
+            locks[node] = new Object();
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            if (level > 0)
+                upperLayers[node] = new int[level * (1 + m)];
+        }
+        if (n > 0)
+            insert(0);
+        ParallelLoops.forEach(Math.max(0, n - 1), i -> insert(i + 1));
+        frozen = true;
+    }
+
+    ThreadLocal<SearchState> newSearchStates() {
+        int n = space.rowCount;
+        return ThreadLocal.withInitial(() -> new SearchState(n, 2 * m));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        searchStates = newSearchStates();
+    }
+
+    int levelOf(int node) {
+        return upperLayers[node] == null ? 0 : upperLayers[node].length / (1 + m);
+    }
+
+    // Returns the array and offset of a node's list on a layer
+    int[] listArray(int node, int layer) { return layer == 0 ? layer0 : upperLayers[node]; }
+    int listOffset(int node, int layer) { return layer == 0 ? node * layer0Width : (layer - 1) * (1 + m); }
+    int capacity(int layer) { return layer == 0 ? 2 * m : m; }
+
+    // Copies a node's list on a layer into buffer and returns its length
+    int readList(int node, int layer, int[] buffer) {
+        if (frozen)
+            return copyList(node, layer, buffer);
+        synchronized (locks[node]) {
+            return copyList(node, layer, buffer);
+        }
+    }
+
+    int copyList(int node, int layer, int[] buffer) {
+        int[] list = listArray(node, layer);
+        int offset = listOffset(node, layer);
+        int length = list[offset];
+        System.arraycopy(list, offset + 1, buffer, 0, length);
+        return length;
+    }
+
+    void insert(int node) {
+        int level = levelOf(node);
+        boolean raisesTop = false;
+        int entry;
+        int top;
+        synchronized (entryLock) {
+            if (entryPoint < 0) {
+                entryPoint = node;
+                maxLevel = level;
+                return;
+            }
+            entry = entryPoint;
+            top = maxLevel;
+            raisesTop = level > top;
+        }
+        if (raisesTop) {
+            // Hold the entry lock so no other row starts from a half-linked entry point. Another
+            // row may have raised the top since it was read, so read it again under the lock.
+            synchronized (entryLock) {
+                entry = entryPoint;
+                top = maxLevel;
+                if (level > top) {
+                    link(node, level, entry, top);
+                    entryPoint = node;
+                    maxLevel = level;
+                    return;
+                }
+            }
+        }
+        link(node, level, entry, top);
+    }
+
+    void link(int node, int level, int entry, int top) {
+        double[] query = space.rowAsQuery(node);
+        SearchState state = searchStates.get();
+        int current = entry;
+        for (int layer = top; layer > level; layer--)
+            current = greedyClosest(query, current, layer, state);
+        for (int layer = Math.min(level, top); layer >= 0; layer--) {
+            NeighborHeap found = searchLayer(query, current, efConstruction, layer, state);
+            int foundCount = found.size;
+            int[] candidates = new int[foundCount];
+            double[] candidateDistances = new double[foundCount];
+            sortAscending(found, candidates, candidateDistances);
+            current = candidates[0];
+
+            int[] selected = selectNeighbors(candidates, candidateDistances, foundCount, m);
+            setNeighbors(node, layer, selected);
+            for (int neighbor : selected)
+                addBackLink(neighbor, node, layer);
+        }
+    }
+
+    // Gives node the selected neighbors on a layer. Rows inserted concurrently may already have
+    // linked back to node (having reached it from a layer above), so the links already in the
+    // list are kept too, and the union is pruned with the heuristic if it overflows.
+    void setNeighbors(int node, int layer, int[] selected) {
+        synchronized (locks[node]) {
+            int[] list = listArray(node, layer);
+            int offset = listOffset(node, layer);
+            int length = list[offset];
+            int[] union = Arrays.copyOf(selected, selected.length + length);
+            int unionCount = selected.length;
+            for (int i = 0; i < length; i++) {
+                int existing = list[offset + 1 + i];
+                boolean duplicate = false;
+                for (int j = 0; j < selected.length && !duplicate; j++)
+                    duplicate = selected[j] == existing;
+                if (!duplicate)
+                    union[unionCount++] = existing;
+            }
+            int capacity = capacity(layer);
+            if (unionCount > capacity) {
+                union = Arrays.copyOf(union, unionCount);
+                double[] distances = new double[unionCount];
+                for (int i = 0; i < unionCount; i++)
+                    distances[i] = space.squaredDistance(node, union[i]);
+                sortAscending(union, distances);
+                union = selectNeighbors(union, distances, unionCount, capacity);
+                unionCount = union.length;
+            }
+            list[offset] = unionCount;
+            System.arraycopy(union, 0, list, offset + 1, unionCount);
+        }
+    }
+
+    // Adds node to neighbor's list, pruning the list with the heuristic if it overflows
+    void addBackLink(int neighbor, int node, int layer) {
+        synchronized (locks[neighbor]) {
+            int[] list = listArray(neighbor, layer);
+            int offset = listOffset(neighbor, layer);
+            int length = list[offset];
+            int capacity = capacity(layer);
+            if (length < capacity) {
+                list[offset + 1 + length] = node;
+                list[offset] = length + 1;
+                return;
+            }
+            int[] candidates = new int[length + 1];
+            double[] distances = new double[length + 1];
+            System.arraycopy(list, offset + 1, candidates, 0, length);
+            candidates[length] = node;
+            for (int i = 0; i <= length; i++)
+                distances[i] = space.squaredDistance(neighbor, candidates[i]);
+            sortAscending(candidates, distances);
+            int[] kept = selectNeighbors(candidates, distances, length + 1, capacity);
+            list[offset] = kept.length;
+            System.arraycopy(kept, 0, list, offset + 1, kept.length);
+        }
+    }
+
+    // The diversity heuristic: walking the candidates from nearest to farthest, keep one only
+    // if it is nearer to the base than to every candidate already kept
+    int[] selectNeighbors(int[] candidates, double[] distances, int count, int limit) {
+        int[] kept = new int[Math.min(count, limit)];
+        int keptCount = 0;
+        for (int i = 0; i < count && keptCount < limit; i++) {
+            boolean diverse = true;
+            for (int j = 0; j < keptCount && diverse; j++) {
+                if (space.squaredDistance(candidates[i], kept[j]) < distances[i])
+                    diverse = false;
+            }
+            if (diverse)
+                kept[keptCount++] = candidates[i];
+        }
+        return Arrays.copyOf(kept, keptCount);
+    }
+
+    // Moves to ever-closer neighbors on one layer until none is closer
+    int greedyClosest(double[] query, int start, int layer, SearchState state) {
+        int current = start;
+        double currentDistance = space.squaredDistance(query, current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int length = readList(current, layer, state.listBuffer);
+            for (int i = 0; i < length; i++) {
+                int candidate = state.listBuffer[i];
+                double d = space.squaredDistance(query, candidate);
+                if (d < currentDistance) {
+                    currentDistance = d;
+                    current = candidate;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    // Best-first search of one layer, returning the ef nearest nodes found
+    NeighborHeap searchLayer(double[] query, int start, int ef, int layer, SearchState state) {
+        state.nextVisit();
+        NeighborHeap results = new NeighborHeap(ef);
+        state.candidateCount = 0;
+        double startDistance = space.squaredDistance(query, start);
+        state.visit(start);
+        state.pushCandidate(startDistance, start);
+        results.offer(startDistance, start);
+        while (state.candidateCount > 0) {
+            double distance = state.candidateDistances[0];
+            int node = state.popCandidate();
+            if (distance > results.worstDistance())
+                break;
+            int length = readList(node, layer, state.listBuffer);
+            for (int i = 0; i < length; i++) {
+                int neighbor = state.listBuffer[i];
+                if (!state.visit(neighbor))
+                    continue;
+                double d = space.squaredDistance(query, neighbor);
+                if (d < results.worstDistance()) {
+                    state.pushCandidate(d, neighbor);
+                    results.offer(d, neighbor);
+                }
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void search(double[] query, NeighborHeap heap) {
+        int entry = entryPoint;
+        if (entry < 0)
+            return;
+        SearchState state = searchStates.get();
+        for (int layer = maxLevel; layer > 0; layer--)
+            entry = greedyClosest(query, entry, layer, state);
+        NeighborHeap found = searchLayer(query, entry, Math.max(efSearch, heap.capacity), 0, state);
+        for (int i = 0; i < found.size; i++)
+            heap.offer(found.distances[i], found.rows[i]);
+    }
+
+    // Empties a heap into arrays sorted by ascending distance
+    static void sortAscending(NeighborHeap heap, int[] rows, double[] distances) {
+        System.arraycopy(heap.rows, 0, rows, 0, heap.size);
+        System.arraycopy(heap.distances, 0, distances, 0, heap.size);
+        sortAscending(rows, distances);
+    }
+
+    static void sortAscending(int[] rows, double[] distances) {
+        // Lists are short (at most max(2m, efConstruction) long), so insertion sort will do
+        for (int i = 1; i < rows.length; i++) {
+            int row = rows[i];
+            double distance = distances[i];
+            int j = i - 1;
+            while (j >= 0 && NeighborHeap.worse(distances[j], rows[j], distance, row)) {
+                rows[j + 1] = rows[j];
+                distances[j + 1] = distances[j];
+                j--;
+            }
+            rows[j + 1] = row;
+            distances[j + 1] = distance;
+        }
+    }
+
+    // A visited set (by generation stamp), a candidate min-heap and a list buffer for one thread
+    static final class SearchState {
+        final int[] visitedStamp;
+        int stamp;
+        double[] candidateDistances = new double[64];
+        int[] candidateRows = new int[64];
+        int candidateCount;
+        final int[] listBuffer;
+
+        SearchState(int rowCount, int maxListLength) {
+            visitedStamp = new int[rowCount];
+            listBuffer = new int[maxListLength];
+        }
+
+        void nextVisit() {
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(visitedStamp, 0);
+                stamp = 1;
+            }
+        }
+
+        // Marks the node visited, returning false if it already was
+        boolean visit(int node) {
+            if (visitedStamp[node] == stamp)
+                return false;
+            visitedStamp[node] = stamp;
+            return true;
+        }
+
+        void pushCandidate(double distance, int row) {
+            if (candidateCount == candidateRows.length) {
+                candidateRows = Arrays.copyOf(candidateRows, candidateCount * 2);
+                candidateDistances = Arrays.copyOf(candidateDistances, candidateCount * 2);
+            }
+            int i = candidateCount++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!NeighborHeap.worse(candidateDistances[parent], candidateRows[parent], distance, row))
+                    break;
+                candidateDistances[i] = candidateDistances[parent];
+                candidateRows[i] = candidateRows[parent];
+                i = parent;
+            }
+            candidateDistances[i] = distance;
+            candidateRows[i] = row;
+        }
+
+        int popCandidate() {
+            int top = candidateRows[0];
+            int last = --candidateCount;
+            double distance = candidateDistances[last];
+            int row = candidateRows[last];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= last)
+                    break;
+                if (child + 1 < last && NeighborHeap.worse(candidateDistances[child], candidateRows[child], candidateDistances[child + 1], candidateRows[child + 1]))
+                    child++;
+                if (!NeighborHeap.worse(distance, row, candidateDistances[child], candidateRows[child]))
+                    break;
+                candidateDistances[i] = candidateDistances[child];
+                candidateRows[i] = candidateRows[child];
+                i = child;
+            }
+            candidateDistances[i] = distance;
+            candidateRows[i] = row;
+            return top;
+        }
+    }
+}
@@ -1,20 +1,399 @@
 package learners;
 
+import java.util.Arrays;
+
 import toolkit.DataMatrix;
 import toolkit.SupervisedLearner;
 
+/**
+ * k-nearest-neighbor learner. A nominal label is predicted by a vote of the k nearest stored
+ * instances and a continuous label by their mean, optionally weighted by 1 / distance^2.
+ *
+ * Neighbors are found exactly through a spatial index built in train: a k-d tree for data
+ * with few attributes and a ball tree otherwise (see InstanceSpace for the distance used).
+ * Few stored rows are not worth indexing, and are searched exhaustively (see
+ * BruteForceSearch). Rows with a missing label are not stored.
+ *
+ * For high-dimensional data the "hnsw" index finds approximate neighbors through a graph
+ * (see Hnsw) instead. train then measures its recall (see getRecall): the fraction of the
+ * true k nearest neighbors it returns for a sample of the stored rows, found by exhaustive
+ * search, each row leaving itself out.
+ *
+ * For a nominal label, train can shrink the model by storing only some of the rows:
+ * "enn" (Wilson's edited nearest neighbor) drops each row that its k nearest other rows
+ * misclassify, "cnn" (Hart's condensed nearest neighbor) keeps only the rows needed to
+ * classify the rest correctly by their nearest neighbor, and "enn+cnn" edits and then
+ * condenses. train measures the fraction of rows kept and the leave-one-out accuracy on
+ * the training rows before and after.
+ */
 public class InstanceBasedLearner extends SupervisedLearner {
+    private static final long serialVersionUID = 1L;
+
+    // Up to this many attributes the "auto" index is a k-d tree, beyond it a ball tree
+    static final int KD_TREE_MAX_DIMENSIONS = 16;
+    // Up to this many stored rows the "auto" index is an exhaustive search
+    static final int BRUTE_FORCE_MAX_ROWS = 4096;
+    // Queries handed to one task by predictBatchLabelsFromFeatures
+    static final int BATCH_BLOCK_ROWS = 64;
+    // Keeps an exact match from getting an infinite weight
+    static final double WEIGHT_EPSILON = 1e-12;
+    // Stored rows used as queries when measuring the recall of the approximate index
+    static final int RECALL_SAMPLE_SIZE = 200;
+    // Candidates classified in parallel against the same kept rows by condensing
+    static final int CONDENSE_BLOCK_ROWS = 256;
+
+    int k;
+    boolean distanceWeighting;
+    String indexType; // "auto", "brute", "kdtree", "balltree" or "hnsw"
+    int hnswM;
+    int hnswEfConstruction;
+    int hnswEfSearch;
+    String reduction; // "none", "enn", "cnn" or "enn+cnn"
+    double recall = 1;
+    double retainedFraction = 1;
+    double leaveOneOutAccuracyBefore = Double.NaN;
+    double leaveOneOutAccuracyAfter = Double.NaN;
+
+    InstanceSpace space;
+    NeighborIndex index;
+    int labelValues; // 0 for a continuous label
+    double[] labelByRow;
+
     public InstanceBasedLearner() {
-        throw new UnsupportedOperationException("The InstanceBasedLearner class has not been implemented yet.");
+        this(3, false, "auto");
+    }
+
+    public InstanceBasedLearner(int k, boolean distanceWeighting, String indexType) {
+        this(k, distanceWeighting, indexType, 16, 200, 50, "none");
+    }
+
+    public InstanceBasedLearner(int k, boolean distanceWeighting, String indexType, int hnswM, int hnswEfConstruction, int hnswEfSearch) {
+        this(k, distanceWeighting, indexType, hnswM, hnswEfConstruction, hnswEfSearch, "none");
+    }
+
+    public InstanceBasedLearner(int k, boolean distanceWeighting, String indexType, int hnswM, int hnswEfConstruction, int hnswEfSearch, String reduction) {
+        this.k = k;
+        this.distanceWeighting = distanceWeighting;
+        this.indexType = indexType;
+        this.hnswM = hnswM;
+        this.hnswEfConstruction = hnswEfConstruction;
+        this.hnswEfSearch = hnswEfSearch;
+        this.reduction = reduction;
     }
 
     @Override
     public void train(DataMatrix featuresOnlyDataMatrix, DataMatrix labelsOnlyDataMatrix) throws Exception {
+        if (featuresOnlyDataMatrix.getRowCount() != labelsOnlyDataMatrix.getRowCount())
+            throw new Exception("Expected the features and labels to have the same number of rows");
+        if (labelsOnlyDataMatrix.getColCount() != 1)
+            throw new Exception("Sorry, InstanceBasedLearner currently only supports one-dimensional labels");
+        if (k <= 0)
+            throw new Exception("k must be greater than 0");
+
+        int rowCount = labelsOnlyDataMatrix.getRowCount();
+        int[] rows = new int[rowCount];
+        int storedCount = 0;
+        for (int row = 0; row < rowCount; row++) {
+            if (labelsOnlyDataMatrix.getValueAt(row, 0) != DataMatrix.MISSING)
+                rows[storedCount++] = row;
+        }
+        if (storedCount == 0)
+            throw new Exception("Expected at least one row with a label");
+        rows = Arrays.copyOf(rows, storedCount);
+
+        labelValues = labelsOnlyDataMatrix.getValueCountForAttributeAtColumn(0);
+        labelByRow = new double[storedCount];
+        for (int i = 0; i < storedCount; i++)
+            labelByRow[i] = labelsOnlyDataMatrix.getValueAt(rows[i], 0);
+        space = InstanceSpace.fit(featuresOnlyDataMatrix, rows);
+        if (reduction.equals("none"))
+            index = buildIndex(space);
+        else
+            reduce();
+        recall = index instanceof Hnsw ? measureRecall() : 1;
+    }
+
+    NeighborIndex buildIndex(InstanceSpace space) throws Exception {
+        switch (indexType) {
+            case "auto":
+                if (space.rowCount <= BRUTE_FORCE_MAX_ROWS)
+                    return new BruteForceSearch(space);
+                return space.dims <= KD_TREE_MAX_DIMENSIONS ? new KdTree(space) : new BallTree(space);
+            case "brute": return new BruteForceSearch(space);
+            case "kdtree": return new KdTree(space);
+            case "balltree": return new BallTree(space);
+            case "hnsw": return new Hnsw(space, hnswM, hnswEfConstruction, hnswEfSearch);
+            default: throw new Exception("Unrecognized neighbor index: " + indexType);
+        }
+    }
+
+    // Replaces the stored rows with the ones the reduction keeps and builds the index over
+    // them, then measures the fraction kept and the leave-one-out accuracy on the training
+    // rows with all of them stored and with only the kept ones
+    void reduce() throws Exception {
+        if (!reduction.equals("enn") && !reduction.equals("cnn") && !reduction.equals("enn+cnn"))
+            throw new Exception("Unrecognized instance reduction: " + reduction);
+        if (labelValues == 0)
+            throw new Exception("Instance reduction requires a nominal label");
+
+        InstanceSpace fullSpace = space;
+        double[] fullLabels = labelByRow;
+        int[] allRows = new int[fullSpace.rowCount];
+        for (int row = 0; row < allRows.length; row++)
+            allRows[row] = row;
+        double[] predictedBefore = leaveOneOutPredictions(fullSpace, buildIndex(fullSpace), fullLabels, allRows);
+
+        int[] kept = reduction.equals("cnn") ? allRows : edit(predictedBefore, fullLabels);
+        if (!reduction.equals("enn"))
+            kept = condense(fullSpace, fullLabels, kept);
+        if (kept.length == 0)
+            throw new Exception("Instance reduction removed every row");
+
+        space = fullSpace.subset(kept);
+        labelByRow = new double[kept.length];
+        int[] keptIndexOfRow = new int[fullSpace.rowCount];
+        Arrays.fill(keptIndexOfRow, -1);
+        for (int i = 0; i < kept.length; i++) {
+            labelByRow[i] = fullLabels[kept[i]];
+            keptIndexOfRow[kept[i]] = i;
+        }
+        index = buildIndex(space);
+        double[] predictedAfter = leaveOneOutPredictions(fullSpace, index, labelByRow, keptIndexOfRow);
+
+        retainedFraction = (double) kept.length / fullSpace.rowCount;
+        leaveOneOutAccuracyBefore = accuracy(predictedBefore, fullLabels);
+        leaveOneOutAccuracyAfter = accuracy(predictedAfter, fullLabels);
+    }
+
+    // Predicts each row of the queried space from its k nearest stored rows other than
+    // itself. storedIndexOfQuery gives the stored row each query is (or -1 if it is not
+    // stored), so one extra neighbor is searched for and the query or the farthest dropped.
+    double[] leaveOneOutPredictions(InstanceSpace queried, NeighborIndex storedIndex, double[] storedLabels, int[] storedIndexOfQuery) throws Exception {
+        double[] predicted = new double[queried.rowCount];
+        int blockCount = (queried.rowCount + BATCH_BLOCK_ROWS - 1) / BATCH_BLOCK_ROWS;
+        ParallelLoops.forEach(blockCount, block -> {
+            int start = block * BATCH_BLOCK_ROWS;
+            int end = Math.min(start + BATCH_BLOCK_ROWS, queried.rowCount);
+            double[][] queries = new double[end - start][];
+            NeighborHeap[] heaps = new NeighborHeap[end - start];
+            for (int i = start; i < end; i++) {
+                queries[i - start] = queried.rowAsQuery(i);
+                heaps[i - start] = new NeighborHeap(k + 1);
+            }
+            storedIndex.searchBatch(queries, heaps);
+            for (int i = start; i < end; i++) {
+                NeighborHeap heap = heaps[i - start];
+                predicted[i] = vote(heap, storedLabels, skippedNeighbor(heap, storedIndexOfQuery[i]));
+            }
+        });
+        return predicted;
+    }
 
+    // Wilson's editing: keeps the rows whose leave-one-out prediction matches their label
+    static int[] edit(double[] predicted, double[] labels) {
+        int[] kept = new int[labels.length];
+        int keptCount = 0;
+        for (int row = 0; row < labels.length; row++) {
+            if (predicted[row] == labels[row])
+                kept[keptCount++] = row;
+        }
+        return Arrays.copyOf(kept, keptCount);
+    }
+
+    // Hart's condensing: starting from the first candidate of each class, keeps every
+    // candidate that its nearest kept row misclassifies, passing over the candidates until a
+    // pass keeps none. A block of candidates is classified in parallel against the rows kept
+    // before the block, so the result does not depend on the number of threads.
+    int[] condense(InstanceSpace fullSpace, double[] labels, int[] candidates) throws Exception {
+        int[] kept = new int[candidates.length];
+        int keptCount = 0;
+        boolean[] isKept = new boolean[fullSpace.rowCount];
+        boolean[] classSeen = new boolean[labelValues];
+        for (int row : candidates) {
+            if (!classSeen[(int) labels[row]]) {
+                classSeen[(int) labels[row]] = true;
+                isKept[row] = true;
+                kept[keptCount++] = row;
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int start = 0; start < candidates.length; start += CONDENSE_BLOCK_ROWS) {
+                int blockStart = start;
+                int blockEnd = Math.min(start + CONDENSE_BLOCK_ROWS, candidates.length);
+                int storeCount = keptCount;
+                boolean[] misclassified = new boolean[blockEnd - blockStart];
+                ParallelLoops.forEach(blockEnd - blockStart, i -> {
+                    int row = candidates[blockStart + i];
+                    if (isKept[row])
+                        return;
+                    double[] query = fullSpace.rowAsQuery(row);
+                    double best = Double.POSITIVE_INFINITY;
+                    int nearest = -1;
+                    for (int j = 0; j < storeCount; j++) {
+                        double d = fullSpace.squaredDistance(query, kept[j], best);
+                        if (d < best || (d == best && kept[j] < nearest)) {
+                            best = d;
+                            nearest = kept[j];
+                        }
+                    }
+                    misclassified[i] = labels[nearest] != labels[row];
+                });
+                for (int i = 0; i < misclassified.length; i++) {
+                    if (misclassified[i]) {
+                        isKept[candidates[blockStart + i]] = true;
+                        kept[keptCount++] = candidates[blockStart + i];
+                        changed = true;
+                    }
+                }
+            }
+        }
+        int[] condensed = Arrays.copyOf(kept, keptCount);
+        Arrays.sort(condensed);
+        return condensed;
+    }
+
+    static double accuracy(double[] predicted, double[] labels) {
+        int correct = 0;
+        for (int row = 0; row < labels.length; row++) {
+            if (predicted[row] == labels[row])
+                correct++;
+        }
+        return (double) correct / labels.length;
+    }
+
+    // Queries the index with evenly spaced stored rows and returns the fraction of their exact
+    // k nearest neighbors (by exhaustive search) that it found
+    double measureRecall() throws Exception {
+        int queryCount = Math.min(RECALL_SAMPLE_SIZE, space.rowCount);
+        int[] foundCounts = new int[queryCount];
+        int[] expectedCounts = new int[queryCount];
+        BruteForceSearch exhaustive = new BruteForceSearch(space);
+        ParallelLoops.forEach(queryCount, q -> {
+            int queryRow = (int) ((long) q * space.rowCount / queryCount);
+            double[] query = space.rowAsQuery(queryRow);
+            // Both searches find the query's own row, which says nothing about the index, so
+            // they look for one more neighbor and the query's row (or the farthest) is dropped
+            NeighborHeap approximate = new NeighborHeap(k + 1);
+            NeighborHeap exact = new NeighborHeap(k + 1);
+            index.search(query, approximate);
+            exhaustive.search(query, exact);
+            int approximateSkipped = skippedNeighbor(approximate, queryRow);
+            int exactSkipped = skippedNeighbor(exact, queryRow);
+            for (int i = 0; i < exact.size; i++) {
+                if (i == exactSkipped)
+                    continue;
+                expectedCounts[q]++;
+                for (int j = 0; j < approximate.size; j++) {
+                    if (j != approximateSkipped && approximate.rows[j] == exact.rows[i]) {
+                        foundCounts[q]++;
+                        break;
+                    }
+                }
+            }
+        });
+        long found = 0;
+        long expected = 0;
+        for (int q = 0; q < queryCount; q++) {
+            found += foundCounts[q];
+            expected += expectedCounts[q];
+        }
+        return expected == 0 ? 1 : (double) found / expected;
+    }
+
+    // Returns the position in a heap of k + 1 neighbors of the one to leave out: the row
+    // itself if it was found, else the farthest if the heap is full, else -1
+    int skippedNeighbor(NeighborHeap heap, int row) {
+        int skipped = heap.size > k ? 0 : -1; // the root of a full heap is the farthest
+        for (int j = 0; j < heap.size; j++) {
+            if (heap.rows[j] == row)
+                skipped = j;
+        }
+        return skipped;
+    }
+
+    // Returns the number of neighbors each prediction uses
+    public int getK() { return k; }
+
+    // Returns true if the neighbors are found approximately (by the "hnsw" index)
+    public boolean isApproximate() { return index instanceof Hnsw; }
+
+    // Returns the recall of the index measured in train, not counting each query's own row (1 for the exact indexes)
+    public double getRecall() { return recall; }
+
+    // Returns the fraction of the rows with a label that train stored (1 without reduction)
+    public double getRetainedFraction() { return retainedFraction; }
+
+    // Returns the leave-one-out accuracy on the training rows with all of them stored (NaN without reduction)
+    public double getLeaveOneOutAccuracyBefore() { return leaveOneOutAccuracyBefore; }
+
+    // Returns the leave-one-out accuracy on the training rows with only the kept ones stored (NaN without reduction)
+    public double getLeaveOneOutAccuracyAfter() { return leaveOneOutAccuracyAfter; }
+
+    // Returns the instance reduction used by train
+    public String getReduction() { return reduction; }
+
+    // Combines the neighbors in the heap into a label
+    double vote(NeighborHeap heap) {
+        return vote(heap, labelByRow, -1);
+    }
+
+    // Combines the neighbors in the heap, other than the entry at position skipped, into a label
+    double vote(NeighborHeap heap, double[] labels, int skipped) {
+        if (labelValues == 0) {
+            double sum = 0;
+            double weightSum = 0;
+            for (int i = 0; i < heap.size; i++) {
+                if (i == skipped)
+                    continue;
+                double w = weightOf(heap.distances[i]);
+                sum += w * labels[heap.rows[i]];
+                weightSum += w;
+            }
+            return sum / weightSum;
+        }
+        double[] votes = new double[labelValues];
+        for (int i = 0; i < heap.size; i++) {
+            if (i != skipped)
+                votes[(int) labels[heap.rows[i]]] += weightOf(heap.distances[i]);
+        }
+        int best = 0;
+        for (int c = 1; c < labelValues; c++) {
+            if (votes[c] > votes[best])
+                best = c;
+        }
+        return best;
+    }
+
+    double weightOf(double squaredDistance) {
+        return distanceWeighting ? 1 / (squaredDistance + WEIGHT_EPSILON) : 1;
     }
 
     @Override
     public void predictInstanceLabelsFromFeatures(double[] featureVector, double[] arrayInWhichToPutLabels) throws Exception {
+        NeighborHeap heap = new NeighborHeap(k);
+        index.search(space.scaleQuery(featureVector), heap);
+        arrayInWhichToPutLabels[0] = vote(heap);
+    }
 
+    // Searches blocks of queries in parallel, each block as one batch
+    @Override
+    public void predictBatchLabelsFromFeatures(double[][] featureVectors, double[][] arrayInWhichToPutLabels) throws Exception {
+        int blockCount = (featureVectors.length + BATCH_BLOCK_ROWS - 1) / BATCH_BLOCK_ROWS;
+        ParallelLoops.forEach(blockCount, block -> {
+            int start = block * BATCH_BLOCK_ROWS;
+            int end = Math.min(start + BATCH_BLOCK_ROWS, featureVectors.length);
+            double[][] queries = new double[end - start][];
+            NeighborHeap[] heaps = new NeighborHeap[end - start];
+            for (int i = start; i < end; i++) {
+                queries[i - start] = space.scaleQuery(featureVectors[i]);
+                heaps[i - start] = new NeighborHeap(k);
+            }
+            index.searchBatch(queries, heaps);
+            for (int i = start; i < end; i++)
+                arrayInWhichToPutLabels[i][0] = vote(heaps[i - start]);
+        });
     }
 }
@@ -0,0 +1,149 @@
+package learners;
+
+import java.io.Serializable;
+
+import toolkit.DataMatrix;
+
+/**
+ * The stored instances of a nearest-neighbor model, packed row after row into one array.
+ *
+ * Distances are heterogeneous (HEOM-style): a continuous attribute contributes its scaled
+ * difference (the difference divided by the attribute's range in the training data, capped
+ * at 1), a nominal attribute contributes 0 if the values match and 1 otherwise, and an
+ * attribute that is missing on either side contributes 1. The squared contributions are
+ * summed. Every contribution lies in [0, 1] and obeys the triangle inequality, so the
+ * square root of the sum is a metric that the spatial indexes can prune with.
+ *
+ * Continuous values are stored already divided by their range and missing values are
+ * stored as NaN, so a distance is a single pass over two contiguous runs of doubles.
+ */
+class InstanceSpace implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Attributes summed between checks of an early-abandoning distance
+    static final int ABANDON_CHECK_INTERVAL = 4;
+
+    final int rowCount;
+    final int dims;
+    final boolean[] nominal;
+    final double[] scale;
+    final double[] values;
+
+    private InstanceSpace(int rowCount, int dims, boolean[] nominal, double[] scale) {
+        this.rowCount = rowCount;
+        this.dims = dims;
+        this.nominal = nominal;
+        this.scale = scale;
+        values = new double[rowCount * dims];
+    }
+
+    // Stores the specified rows of the matrix, scaling by the ranges over those rows
+    static InstanceSpace fit(DataMatrix featuresOnlyDataMatrix, int[] rows) {
+        int dims = featuresOnlyDataMatrix.getColCount();
+        boolean[] nominal = new boolean[dims];
+        double[] scale = new double[dims];
+        for (int col = 0; col < dims; col++) {
+            nominal[col] = featuresOnlyDataMatrix.getValueCountForAttributeAtColumn(col) > 0;
+            scale[col] = 1;
+            if (!nominal[col]) {
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                boolean hasMissingValues = featuresOnlyDataMatrix.hasMissingValues(col);
+                for (int row : rows) {
+                    if (hasMissingValues && featuresOnlyDataMatrix.isMissing(row, col))
+                        continue;
+                    double v = featuresOnlyDataMatrix.getValueAt(row, col);
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+                if (max > min)
+                    scale[col] = 1 / (max - min);
+            }
+        }
+        InstanceSpace space = new InstanceSpace(rows.length, dims, nominal, scale);
+        for (int i = 0; i < rows.length; i++)
+            space.scaleInto(featuresOnlyDataMatrix.getRow(rows[i]), space.values, i * dims);
+        return space;
+    }
+
+    // Returns a copy holding only the specified stored rows, with the same scaling
+    InstanceSpace subset(int[] rows) {
+        InstanceSpace space = new InstanceSpace(rows.length, dims, nominal, scale);
+        for (int i = 0; i < rows.length; i++)
+            System.arraycopy(values, rows[i] * dims, space.values, i * dims, dims);
+        return space;
+    }
+
+    // Converts a raw feature vector into the stored representation
+    double[] scaleQuery(double[] featureVector) {
+        double[] query = new double[dims];
+        scaleInto(featureVector, query, 0);
+        return query;
+    }
+
+    void scaleInto(double[] featureVector, double[] destination, int offset) {
+        for (int col = 0; col < dims; col++) {
+            double v = featureVector[col];
+            destination[offset + col] = v == DataMatrix.MISSING ? Double.NaN : v * scale[col];
+        }
+    }
+
+    // The squared contribution of one attribute. A NaN (missing) operand fails both
+    // comparisons below, so it contributes 1 without a separate test.
+    double contribution(int col, double a, double b) {
+        if (nominal[col])
+            return a == b ? 0 : 1;
+        double squared = (a - b) * (a - b);
+        return squared < 1 ? squared : 1;
+    }
+
+    // The squared distance between a (scaled) query and a stored row
+    double squaredDistance(double[] query, int row) {
+        int offset = row * dims;
+        double sum = 0;
+        for (int col = 0; col < dims; col++)
+            sum += contribution(col, query[col], values[offset + col]);
+        return sum;
+    }
+
+    // The squared distance between a query and a stored row, or some partial sum above limit
+    // if the distance exceeds limit. The sum is checked against limit every few attributes.
+    double squaredDistance(double[] query, int row, double limit) {
+        int offset = row * dims;
+        double sum = 0;
+        int col = 0;
+        while (col < dims) {
+            int stop = Math.min(col + ABANDON_CHECK_INTERVAL, dims);
+            for (; col < stop; col++)
+                sum += contribution(col, query[col], values[offset + col]);
+            if (sum > limit)
+                return sum;
+        }
+        return sum;
+    }
+
+    // The squared distance between two stored rows
+    double squaredDistance(int rowA, int rowB) {
+        int offsetA = rowA * dims;
+        int offsetB = rowB * dims;
+        double sum = 0;
+        for (int col = 0; col < dims; col++)
+            sum += contribution(col, values[offsetA + col], values[offsetB + col]);
+        return sum;
+    }
+
+    // The squared distance between two vectors in the stored representation
+    double squaredDistance(double[] a, double[] b) {
+        double sum = 0;
+        for (int col = 0; col < dims; col++)
+            sum += contribution(col, a[col], b[col]);
+        return sum;
+    }
+
+    // Returns the stored row as a (scaled) query
+    double[] rowAsQuery(int row) {
+        double[] query = new double[dims];
+        System.arraycopy(values, row * dims, query, 0, dims);
+        return query;
+    }
+}
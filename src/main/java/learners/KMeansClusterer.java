@@ -0,0 +1,471 @@
+package learners;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import toolkit.DataMatrix;
+
+/**
+ * k-means clustering of every column of a matrix.
+ *
+ * Rows are compared with the heterogeneous distance of InstanceSpace: continuous attributes
+ * are scaled by their range, nominal attributes count 0 when they match and 1 otherwise,
+ * and a missing value on either side counts 1. A centroid holds the mean of each
+ * continuous attribute and the most common value of each nominal attribute over the
+ * cluster's rows that have the attribute; it is missing if none of them do.
+ *
+ * The initial centroids are chosen by k-means|| (a parallel k-means++): a few rounds each
+ * sample about 2k rows in proportion to their squared distance from the rows already
+ * sampled, and the samples, weighted by how many rows are nearest to them, are reduced to
+ * k centroids by k-means++.
+ *
+ * Iterations use Hamerly's bounds. Each row keeps an upper bound on the distance to its
+ * centroid and a lower bound on the distance to every other centroid; the bounds are
+ * widened by how far the centroids move, and a row is only compared with the other
+ * centroids when they no longer prove its assignment. Even then, as in Elkan's algorithm,
+ * a centroid far enough from the assigned one is skipped without computing its distance.
+ *
+ * Rows are processed in chunks in parallel, each chunk summing its rows into its own
+ * accumulator, and the accumulators are merged in chunk order, so the result does not
+ * depend on the number of threads.
+ */
+public class KMeansClusterer {
+    // Rows per chunk, unless that would make more than MAX_CHUNKS chunks
+    static final int CHUNK_ROWS = 8192;
+    static final int MAX_CHUNKS = 64;
+    // Sampling rounds of k-means||, each drawing about OVERSAMPLING * k rows
+    static final int SEEDING_ROUNDS = 5;
+    static final int OVERSAMPLING = 2;
+
+    int k;
+    int maxIterations;
+    Random rand;
+
+    InstanceSpace space;
+    int chunkRows;
+    int chunkCount;
+    int[] valueOffset; // start of each nominal column's value counts in an accumulator
+    int[] valueCount;
+    int nominalValueCount;
+
+    double[][] centroids;
+    int[] assignment;
+    int[] clusterSize;
+    double[] clusterSse;
+    int iterationCount;
+    long distanceCount; // made by the iterations, including those between centroids
+
+    public KMeansClusterer(Random rand, int k, int maxIterations) {
+        this.rand = rand;
+        this.k = k;
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Clusters the rows of the matrix, leaving the centroids and the cluster of each row
+     * to be read with the getters.
+     */
+    public void cluster(DataMatrix dataMatrix) throws Exception {
+        if (k <= 0)
+            throw new Exception("k must be greater than 0");
+        if (dataMatrix.getRowCount() < k)
+            throw new Exception("Expected at least k rows");
+
+        int rowCount = dataMatrix.getRowCount();
+        int[] rows = new int[rowCount];
+        for (int row = 0; row < rowCount; row++)
+            rows[row] = row;
+        space = InstanceSpace.fit(dataMatrix, rows);
+        chunkRows = Math.max(CHUNK_ROWS, (rowCount + MAX_CHUNKS - 1) / MAX_CHUNKS);
+        chunkCount = (rowCount + chunkRows - 1) / chunkRows;
+        valueOffset = new int[space.dims];
+        valueCount = new int[space.dims];
+        nominalValueCount = 0;
+        for (int col = 0; col < space.dims; col++) {
+            valueOffset[col] = nominalValueCount;
+            valueCount[col] = dataMatrix.getValueCountForAttributeAtColumn(col);
+            nominalValueCount += valueCount[col];
+        }
+
+        distanceCount = 0;
+        centroids = seed(rand.nextLong());
+        iterate();
+        measureClusters();
+    }
+
+    // Chooses k rows as the initial centroids by k-means||
+    double[][] seed(long seed) throws Exception {
+        int rowCount = space.rowCount;
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] candidates = new int[1 + SEEDING_ROUNDS * OVERSAMPLING * k + 1];
+        int candidateCount = 0;
+        candidates[candidateCount++] = random.nextInt(rowCount);
+
+        // The squared distance from each row to its nearest candidate, and which one that is
+        double[] nearestSquared = new double[rowCount];
+        int[] nearestCandidate = new int[rowCount];
+        Arrays.fill(nearestSquared, Double.POSITIVE_INFINITY);
+        double[] chunkCost = new double[chunkCount];
+        int[][] chunkPicks = new int[chunkCount][];
+        int[] chunkPickCounts = new int[chunkCount];
+
+        int newFrom = 0;
+        for (int round = 0; ; round++) {
+            // Bring the distances up to date with the candidates added last round
+            int from = newFrom;
+            double[][] added = new double[candidateCount - from][];
+            for (int c = from; c < candidateCount; c++)
+                added[c - from] = space.rowAsQuery(candidates[c]);
+            ParallelLoops.forEach(chunkCount, chunk -> {
+                double cost = 0;
+                for (int row = chunk * chunkRows; row < Math.min((chunk + 1) * chunkRows, rowCount); row++) {
+                    for (int c = 0; c < added.length; c++) {
+                        double d = space.squaredDistance(added[c], row, nearestSquared[row]);
+                        if (d < nearestSquared[row]) {
+                            nearestSquared[row] = d;
+                            nearestCandidate[row] = from + c;
+                        }
+                    }
+                    cost += nearestSquared[row];
+                }
+                chunkCost[chunk] = cost;
+            });
+            if (round == SEEDING_ROUNDS)
+                break;
+            double totalCost = 0;
+            for (double cost : chunkCost)
+                totalCost += cost;
+            if (totalCost == 0)
+                break;
+
+            // Sample each row with probability proportional to its squared distance
+            double sampleScale = OVERSAMPLING * k / totalCost;
+            long roundSeed = random.nextLong();
+            ParallelLoops.forEach(chunkCount, chunk -> {
+                SplittableRandom chunkRandom = new SplittableRandom(roundSeed + chunk * 0x9E3779B97F4A7C15L);
+                int[] picks = new int[16];
+                int pickCount = 0;
+                for (int row = chunk * chunkRows; row < Math.min((chunk + 1) * chunkRows, rowCount); row++) {
+                    if (chunkRandom.nextDouble() < nearestSquared[row] * sampleScale) {
+                        if (pickCount == picks.length)
+                            picks = Arrays.copyOf(picks, 2 * pickCount);
+                        picks[pickCount++] = row;
+                    }
+                }
+                chunkPicks[chunk] = picks;
+                chunkPickCounts[chunk] = pickCount;
+            });
+            newFrom = candidateCount;
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                if (candidateCount + chunkPickCounts[chunk] > candidates.length)
+                    candidates = Arrays.copyOf(candidates, Math.max(2 * candidates.length, candidateCount + chunkPickCounts[chunk]));
+                System.arraycopy(chunkPicks[chunk], 0, candidates, candidateCount, chunkPickCounts[chunk]);
+                candidateCount += chunkPickCounts[chunk];
+            }
+        }
+
+        // Weight each candidate by the number of rows nearest to it
+        double[] weights = new double[candidateCount];
+        for (int row = 0; row < rowCount; row++)
+            weights[nearestCandidate[row]]++;
+        return reduceCandidates(Arrays.copyOf(candidates, candidateCount), weights, random);
+    }
+
+    // Picks k of the weighted candidate rows by k-means++. If there are too few candidates
+    // the remaining centroids are random rows.
+    double[][] reduceCandidates(int[] candidates, double[] weights, SplittableRandom random) {
+        double[][] chosen = new double[k][];
+        int chosenCount = 0;
+        if (candidates.length <= k) {
+            for (int candidate : candidates)
+                chosen[chosenCount++] = space.rowAsQuery(candidate);
+            while (chosenCount < k)
+                chosen[chosenCount++] = space.rowAsQuery(random.nextInt(space.rowCount));
+            return chosen;
+        }
+
+        double[][] points = new double[candidates.length][];
+        for (int i = 0; i < candidates.length; i++)
+            points[i] = space.rowAsQuery(candidates[i]);
+        double[] nearestSquared = new double[candidates.length];
+        Arrays.fill(nearestSquared, Double.POSITIVE_INFINITY);
+        int next = pickWeighted(weights, random);
+        while (true) {
+            chosen[chosenCount++] = points[next];
+            if (chosenCount == k)
+                return chosen;
+            double[] scores = new double[candidates.length];
+            for (int i = 0; i < candidates.length; i++) {
+                nearestSquared[i] = Math.min(nearestSquared[i], space.squaredDistance(points[next], points[i]));
+                scores[i] = weights[i] * nearestSquared[i];
+            }
+            next = pickWeighted(scores, random);
+        }
+    }
+
+    // Returns an index with probability proportional to its score (uniformly if all are 0)
+    static int pickWeighted(double[] scores, SplittableRandom random) {
+        double total = 0;
+        for (double score : scores)
+            total += score;
+        if (total == 0)
+            return random.nextInt(scores.length);
+        double target = random.nextDouble() * total;
+        for (int i = 0; i < scores.length; i++) {
+            target -= scores[i];
+            if (target < 0)
+                return i;
+        }
+        return scores.length - 1;
+    }
+
+    // Runs Hamerly iterations until no row changes cluster or maxIterations is reached
+    void iterate() throws Exception {
+        int rowCount = space.rowCount;
+        assignment = new int[rowCount];
+        double[] upper = new double[rowCount];
+        double[] lower = new double[rowCount];
+        Arrays.fill(upper, Double.POSITIVE_INFINITY);
+        Accumulator[] accumulators = new Accumulator[chunkCount];
+        for (int chunk = 0; chunk < chunkCount; chunk++)
+            accumulators[chunk] = new Accumulator();
+        int[] chunkChanges = new int[chunkCount];
+        long[] chunkDistances = new long[chunkCount];
+        double[] halfGap = new double[k];
+        double[] centroidDistance = new double[k * k];
+
+        for (iterationCount = 1; iterationCount <= maxIterations; iterationCount++) {
+            // Half the distance from each centroid to the nearest other one
+            Arrays.fill(halfGap, Double.POSITIVE_INFINITY);
+            for (int a = 0; a < k; a++) {
+                for (int b = a + 1; b < k; b++) {
+                    double distance = Math.sqrt(space.squaredDistance(centroids[a], centroids[b]));
+                    centroidDistance[a * k + b] = distance;
+                    centroidDistance[b * k + a] = distance;
+                    halfGap[a] = Math.min(halfGap[a], distance / 2);
+                    halfGap[b] = Math.min(halfGap[b], distance / 2);
+                }
+            }
+            distanceCount += (long) k * (k - 1) / 2;
+
+            ParallelLoops.forEach(chunkCount, chunk -> {
+                Accumulator accumulator = accumulators[chunk];
+                accumulator.clear();
+                int changes = 0;
+                long distances = 0;
+                for (int row = chunk * chunkRows; row < Math.min((chunk + 1) * chunkRows, rowCount); row++) {
+                    int assigned = assignment[row];
+                    double bound = Math.max(halfGap[assigned], lower[row]);
+                    if (upper[row] > bound) {
+                        upper[row] = Math.sqrt(space.squaredDistance(centroids[assigned], row));
+                        distances++;
+                        if (upper[row] > bound) {
+                            // The bounds no longer decide, so find the two nearest centroids.
+                            // A centroid at distance g from the assigned one is at least g - u
+                            // from the row, so it is skipped if that cannot beat the second.
+                            double u = upper[row];
+                            double best = u * u;
+                            double second = Double.POSITIVE_INFINITY;
+                            int nearest = assigned;
+                            for (int c = 0; c < k; c++) {
+                                double gapBound = centroidDistance[assigned * k + c] - u;
+                                if (c == assigned || (gapBound > 0 && gapBound * gapBound >= second))
+                                    continue;
+                                distances++;
+                                double d = space.squaredDistance(centroids[c], row, second);
+                                if (d < best) {
+                                    second = best;
+                                    best = d;
+                                    nearest = c;
+                                } else if (d < second) {
+                                    second = d;
+                                }
+                            }
+                            if (nearest != assigned)
+                                changes++;
+                            assignment[row] = nearest;
+                            upper[row] = Math.sqrt(best);
+                            lower[row] = Math.sqrt(second);
+                        }
+                    }
+                    accumulator.add(row, assignment[row]);
+                }
+                chunkChanges[chunk] = changes;
+                chunkDistances[chunk] = distances;
+            });
+            int changes = 0;
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                changes += chunkChanges[chunk];
+                distanceCount += chunkDistances[chunk];
+                if (chunk > 0)
+                    accumulators[0].merge(accumulators[chunk]);
+            }
+            // Every row starts in cluster 0, so the first pass is not a sign of convergence
+            if (changes == 0 && iterationCount > 1)
+                break;
+
+            // Move the centroids and loosen the bounds by how far they moved
+            double[] moved = new double[k];
+            int farthest = 0;
+            int secondFarthest = -1;
+            for (int c = 0; c < k; c++) {
+                double[] updated = accumulators[0].centroid(c, centroids[c]);
+                moved[c] = Math.sqrt(movement(centroids[c], updated));
+                centroids[c] = updated;
+                if (moved[c] > moved[farthest]) {
+                    secondFarthest = farthest;
+                    farthest = c;
+                } else if (c != farthest && (secondFarthest < 0 || moved[c] > moved[secondFarthest])) {
+                    secondFarthest = c;
+                }
+            }
+            double maxMoved = moved[farthest];
+            double maxOtherMoved = secondFarthest < 0 ? 0 : moved[secondFarthest];
+            int farthestCluster = farthest;
+            ParallelLoops.forEach(chunkCount, chunk -> {
+                for (int row = chunk * chunkRows; row < Math.min((chunk + 1) * chunkRows, rowCount); row++) {
+                    upper[row] += moved[assignment[row]];
+                    lower[row] -= assignment[row] == farthestCluster ? maxOtherMoved : maxMoved;
+                }
+            });
+        }
+        iterationCount = Math.min(iterationCount, maxIterations);
+    }
+
+    // The squared distance a centroid moved. An attribute missing both before and after did
+    // not move, which keeps the bound updates valid while not loosening them needlessly.
+    double movement(double[] before, double[] after) {
+        double sum = 0;
+        for (int col = 0; col < space.dims; col++) {
+            if (!(Double.isNaN(before[col]) && Double.isNaN(after[col])))
+                sum += space.contribution(col, before[col], after[col]);
+        }
+        return sum;
+    }
+
+    // Counts the rows of each cluster and sums their squared distances to its centroid
+    void measureClusters() throws Exception {
+        int[][] chunkSizes = new int[chunkCount][k];
+        double[][] chunkSse = new double[chunkCount][k];
+        ParallelLoops.forEach(chunkCount, chunk -> {
+            for (int row = chunk * chunkRows; row < Math.min((chunk + 1) * chunkRows, space.rowCount); row++) {
+                chunkSizes[chunk][assignment[row]]++;
+                chunkSse[chunk][assignment[row]] += space.squaredDistance(centroids[assignment[row]], row);
+            }
+        });
+        clusterSize = new int[k];
+        clusterSse = new double[k];
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            for (int c = 0; c < k; c++) {
+                clusterSize[c] += chunkSizes[chunk][c];
+                clusterSse[c] += chunkSse[chunk][c];
+            }
+        }
+    }
+
+    // The sums and counts needed to recompute the centroids, for the rows of one chunk
+    final class Accumulator {
+        final double[] sums = new double[k * space.dims];
+        final int[] counts = new int[k * space.dims];
+        final int[] valueCounts = new int[k * nominalValueCount];
+        final int[] sizes = new int[k];
+
+        void clear() {
+            Arrays.fill(sizes, 0);
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            Arrays.fill(valueCounts, 0);
+        }
+
+        void add(int row, int cluster) {
+            sizes[cluster]++;
+            int offset = row * space.dims;
+            for (int col = 0; col < space.dims; col++) {
+                double v = space.values[offset + col];
+                if (Double.isNaN(v))
+                    continue;
+                if (space.nominal[col]) {
+                    valueCounts[cluster * nominalValueCount + valueOffset[col] + (int) v]++;
+                } else {
+                    sums[cluster * space.dims + col] += v;
+                    counts[cluster * space.dims + col]++;
+                }
+            }
+        }
+
+        void merge(Accumulator other) {
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += other.sums[i];
+                counts[i] += other.counts[i];
+            }
+            for (int i = 0; i < valueCounts.length; i++)
+                valueCounts[i] += other.valueCounts[i];
+            for (int c = 0; c < k; c++)
+                sizes[c] += other.sizes[c];
+        }
+
+        // The new centroid of a cluster, or the previous one if the cluster is empty
+        double[] centroid(int cluster, double[] previous) {
+            if (sizes[cluster] == 0)
+                return previous;
+            double[] centroid = new double[space.dims];
+            for (int col = 0; col < space.dims; col++) {
+                centroid[col] = Double.NaN;
+                if (space.nominal[col]) {
+                    int start = cluster * nominalValueCount + valueOffset[col];
+                    int best = -1;
+                    for (int i = start; i < start + valueCount[col]; i++) {
+                        if (valueCounts[i] > 0 && (best < 0 || valueCounts[i] > valueCounts[best]))
+                            best = i;
+                    }
+                    if (best >= 0)
+                        centroid[col] = best - start;
+                } else {
+                    int count = counts[cluster * space.dims + col];
+                    if (count > 0)
+                        centroid[col] = sums[cluster * space.dims + col] / count;
+                }
+            }
+            return centroid;
+        }
+    }
+
+    // The centroid of each cluster in the stored representation (see InstanceSpace)
+    public double[][] getCentroids() { return centroids; }
+
+    // The cluster of each row of the matrix
+    public int[] getAssignments() { return assignment; }
+
+    public int getIterationCount() { return iterationCount; }
+
+    // The total squared distance of the rows to their centroids
+    public double getSse() {
+        double sse = 0;
+        for (double s : clusterSse)
+            sse += s;
+        return sse;
+    }
+
+    // Prints the size, squared error and centroid (in the original units) of each cluster
+    public void printClusters(DataMatrix dataMatrix) {
+        System.out.println("Iterations: " + iterationCount);
+        System.out.println("Distance computations: " + distanceCount + " ("
+                + (double) distanceCount / ((double) space.rowCount * k * iterationCount) + " of the number without bounds)");
+        for (int c = 0; c < k; c++) {
+            StringBuilder line = new StringBuilder("Cluster " + c + ": size " + clusterSize[c] + ", SSE " + clusterSse[c] + ", centroid");
+            for (int col = 0; col < space.dims; col++) {
+                double v = centroids[c][col];
+                line.append(col == 0 ? " " : ", ");
+                if (Double.isNaN(v))
+                    line.append('?');
+                else if (space.nominal[col])
+                    line.append(dataMatrix.getAttributeValueName(col, (int) v));
+                else
+                    line.append(v / space.scale[col]);
+            }
+            System.out.println(line);
+        }
+        System.out.println("Total SSE: " + getSse());
+    }
+}
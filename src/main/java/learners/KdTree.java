@@ -0,0 +1,135 @@
+package learners;
+
+import java.util.Arrays;
+
+/**
+ * An exact k-d tree over the stored instances, for low-dimensional data.
+ *
+ * Each node splits its rows at the median of the attribute with the widest spread and keeps
+ * the bounding box (the per-attribute minimum and maximum of the values present) of its
+ * rows. A search visits the nearer child first and skips any node whose box is farther away
+ * than the current k-th nearest neighbor. Since a missing value contributes 1, the most any
+ * attribute can contribute, the box of the values present bounds every row in the node.
+ */
+final class KdTree implements NeighborIndex {
+    private static final long serialVersionUID = 1L;
+
+    static final int LEAF_SIZE = 16;
+
+    final InstanceSpace space;
+    final int[] order;
+
+    // Node n covers order[nodeStart[n], nodeEnd[n]). Leaves have nodeLeft[n] == -1.
+    int nodeCount;
+    int[] nodeStart;
+    int[] nodeEnd;
+    int[] nodeLeft;
+    int[] nodeRight;
+    double[] lower; // lower[n * dims + col], NaN if the node has no values for col
+    double[] upper;
+
+    KdTree(InstanceSpace space) {
+        this.space = space;
+        order = new int[space.rowCount];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        int capacity = 2 * (space.rowCount / (LEAF_SIZE / 2) + 1);
+        nodeStart = new int[capacity];
+        nodeEnd = new int[capacity];
+        nodeLeft = new int[capacity];
+        nodeRight = new int[capacity];
+        lower = new double[capacity * space.dims];
+        upper = new double[capacity * space.dims];
+        if (space.rowCount > 0)
+            build(0, space.rowCount, new double[space.rowCount]);
+        lower = Arrays.copyOf(lower, nodeCount * space.dims);
+        upper = Arrays.copyOf(upper, nodeCount * space.dims);
+    }
+
+    int build(int start, int end, double[] keys) {
+        int node = nodeCount++;
+        nodeStart[node] = start;
+        nodeEnd[node] = end;
+        nodeLeft[node] = -1;
+        nodeRight[node] = -1;
+
+        int dims = space.dims;
+        int splitCol = -1;
+        double widest = 0;
+        for (int col = 0; col < dims; col++) {
+            double min = Double.NaN;
+            double max = Double.NaN;
+            for (int i = start; i < end; i++) {
+                double v = space.values[order[i] * dims + col];
+                if (v != v)
+                    continue;
+                if (!(v >= min))
+                    min = v;
+                if (!(v <= max))
+                    max = v;
+            }
+            lower[node * dims + col] = min;
+            upper[node * dims + col] = max;
+            if (max - min > widest) {
+                widest = max - min;
+                splitCol = col;
+            }
+        }
+        if (end - start <= LEAF_SIZE || splitCol < 0)
+            return node;
+
+        for (int i = start; i < end; i++)
+            keys[i] = space.values[order[i] * dims + splitCol];
+        int mid = (start + end) >>> 1;
+        NeighborIndex.select(order, keys, start, end, mid);
+        nodeLeft[node] = build(start, mid, keys);
+        nodeRight[node] = build(mid, end, keys);
+        return node;
+    }
+
+    // A lower bound on the squared distance from the query to any row in the node
+    double lowerBound(int node, double[] query) {
+        int dims = space.dims;
+        double bound = 0;
+        for (int col = 0; col < dims; col++) {
+            double q = query[col];
+            double min = lower[node * dims + col];
+            if (q != q || min != min) {
+                bound += 1; // every row contributes 1 for this attribute
+                continue;
+            }
+            double max = upper[node * dims + col];
+            double gap = q < min ? min - q : (q > max ? q - max : 0);
+            if (gap > 0)
+                bound += space.nominal[col] || gap >= 1 ? 1 : gap * gap;
+        }
+        return bound;
+    }
+
+    @Override
+    public void search(double[] query, NeighborHeap heap) {
+        if (nodeCount > 0)
+            search(0, lowerBound(0, query), query, heap);
+    }
+
+    void search(int node, double bound, double[] query, NeighborHeap heap) {
+        if (bound > heap.worstDistance())
+            return;
+        if (nodeLeft[node] < 0) {
+            for (int i = nodeStart[node]; i < nodeEnd[node]; i++)
+                heap.offer(space.squaredDistance(query, order[i], heap.worstDistance()), order[i]);
+            return;
+        }
+        int left = nodeLeft[node];
+        int right = nodeRight[node];
+        double leftBound = lowerBound(left, query);
+        double rightBound = lowerBound(right, query);
+        if (leftBound <= rightBound) {
+            search(left, leftBound, query, heap);
+            search(right, rightBound, query, heap);
+        } else {
+            search(right, rightBound, query, heap);
+            search(left, leftBound, query, heap);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package learners;
+
+/**
+ * A bounded max-heap of the k best (smallest squared distance) neighbors seen so far, kept
+ * in primitive arrays. Equal distances are ordered by row, so the lower row wins a tie and
+ * every index returns exactly the same neighbors.
+ */
+final class NeighborHeap {
+    final int capacity;
+    final double[] distances;
+    final int[] rows;
+    int size;
+
+    NeighborHeap(int capacity) {
+        this.capacity = capacity;
+        distances = new double[capacity];
+        rows = new int[capacity];
+    }
+
+    void clear() { size = 0; }
+
+    // The squared distance a candidate must not exceed to get in
+    double worstDistance() { return size < capacity ? Double.POSITIVE_INFINITY : distances[0]; }
+
+    // True if (a, rowA) ranks after (b, rowB)
+    static boolean worse(double a, int rowA, double b, int rowB) {
+        return a > b || (a == b && rowA > rowB);
+    }
+
+    void offer(double distance, int row) {
+        if (size < capacity) {
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!worse(distance, row, distances[parent], rows[parent]))
+                    break;
+                distances[i] = distances[parent];
+                rows[i] = rows[parent];
+                i = parent;
+            }
+            distances[i] = distance;
+            rows[i] = row;
+        } else if (worse(distances[0], rows[0], distance, row)) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && worse(distances[child + 1], rows[child + 1], distances[child], rows[child]))
+                    child++;
+                if (!worse(distances[child], rows[child], distance, row))
+                    break;
+                distances[i] = distances[child];
+                rows[i] = rows[child];
+                i = child;
+            }
+            distances[i] = distance;
+            rows[i] = row;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package learners;
+
+import java.io.Serializable;
+
+/**
+ * Finds the stored instances nearest to a query. Implementations are built once in train
+ * and must allow concurrent searches.
+ */
+interface NeighborIndex extends Serializable {
+    // Offers the query's nearest stored rows to heap (the heap's capacity is k)
+    void search(double[] query, NeighborHeap heap);
+
+    // Searches for several queries at once, one heap per query
+    default void searchBatch(double[][] queries, NeighborHeap[] heaps) {
+        for (int q = 0; q < queries.length; q++)
+            search(queries[q], heaps[q]);
+    }
+
+    // Rearranges order[start, end) (with keys[start, end) alongside it) so that position nth
+    // holds the element that would be there if sorted by key, with no larger keys before it
+    // and no smaller ones after it. NaN keys sort last.
+    static void select(int[] order, double[] keys, int start, int end, int nth) {
+        int lo = start;
+        int hi = end - 1;
+        while (lo < hi) {
+            double pivot = keys[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (Double.compare(keys[i], pivot) < 0)
+                    i++;
+                while (Double.compare(keys[j], pivot) > 0)
+                    j--;
+                if (i <= j) {
+                    double key = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = key;
+                    int row = order[i];
+                    order[i] = order[j];
+                    order[j] = row;
+                    i++;
+                    j--;
+                }
+            }
+            if (nth <= j)
+                hi = j;
+            else if (nth >= i)
+                lo = i;
+            else
+                return;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package learners;
+
+import java.util.stream.IntStream;
+
+/**
+ * Runs the iterations of a loop in parallel on the common fork-join pool. Unlike a plain
+ * parallel stream, the loop body may throw checked exceptions; the first one thrown is
+ * rethrown to the caller once the loop has stopped.
+ */
+final class ParallelLoops {
+    interface Body {
+        void run(int index) throws Exception;
+    }
+
+    private ParallelLoops() {}
+
+    static void forEach(int count, Body body) throws Exception {
+        try {
+            IntStream.range(0, count).parallel().forEach(index -> {
+                try {
+                    body.run(index);
+                } catch (Exception e) {
+                    throw new BodyException(e);
+                }
+            });
+        } catch (BodyException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private static final class BodyException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BodyException(Exception cause) {
+            super(cause);
+        }
+    }
+}
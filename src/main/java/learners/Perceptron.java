@@ -6,6 +6,8 @@ import toolkit.DataMatrix;
 import toolkit.SupervisedLearner;
 
 public class Perceptron extends SupervisedLearner {
+    private static final long serialVersionUID = 1L;
+
     Random rand;
 
     public Perceptron(Random rand) {
@@ -0,0 +1,237 @@
+package learners;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.function.Supplier;
+
+import toolkit.DataMatrix;
+import toolkit.SupervisedLearner;
+
+/**
+ * A bagging ensemble. Each member is trained on its own bootstrap sample of the training
+ * rows, and the members vote (nominal label) or are averaged (continuous label).
+ *
+ * A bootstrap sample is never materialized as a matrix: it is a list of the drawn row
+ * indices with the number of times each was drawn as its weight, passed to the member's
+ * weighted train method. Decision tree members also share one binned copy of the features,
+ * and can draw a random subset of the features at each split (a random forest). Members
+ * are trained in parallel; each draws its sample from its own seed, so the ensemble only
+ * depends on rand. Rows that a member did not draw are out of bag for it, and predicting
+ * each row with just those members gives a free estimate of the test accuracy.
+ */
+public class RandomForest extends SupervisedLearner {
+    private static final long serialVersionUID = 1L;
+
+    // Instances predicted by one member before moving on to the next in predictBatchLabelsFromFeatures
+    static final int BATCH_BLOCK_ROWS = 256;
+    // Ensembles at least this large poll their members in parallel for a single instance
+    static final int PARALLEL_MEMBERS = 64;
+
+    Random rand;
+    int memberCount;
+    boolean randomFeatureSubsets;
+    // null means decision tree members. Only train uses it, so it is not serialized.
+    transient Supplier<SupervisedLearner> memberFactory;
+
+    SupervisedLearner[] members;
+    int labelValues; // 0 for a continuous label
+    double outOfBagAccuracy;
+
+    // An ensemble of decision trees, which is a random forest if randomFeatureSubsets is set
+    public RandomForest(Random rand, int memberCount, boolean randomFeatureSubsets) {
+        this.rand = rand;
+        this.memberCount = memberCount;
+        this.randomFeatureSubsets = randomFeatureSubsets;
+    }
+
+    // An ensemble of any kind of learner
+    public RandomForest(Random rand, int memberCount, Supplier<SupervisedLearner> memberFactory) {
+        this.rand = rand;
+        this.memberCount = memberCount;
+        this.memberFactory = memberFactory;
+    }
+
+    @Override
+    public void train(DataMatrix featuresOnlyDataMatrix, DataMatrix labelsOnlyDataMatrix) throws Exception {
+        if (featuresOnlyDataMatrix.getRowCount() != labelsOnlyDataMatrix.getRowCount())
+            throw new Exception("Expected the features and labels to have the same number of rows");
+        if (labelsOnlyDataMatrix.getColCount() != 1)
+            throw new Exception("Sorry, RandomForest currently only supports one-dimensional labels");
+        if (memberCount <= 0)
+            throw new Exception("Expected at least one member");
+
+        int rowCount = featuresOnlyDataMatrix.getRowCount();
+        labelValues = labelsOnlyDataMatrix.getValueCountForAttributeAtColumn(0);
+        long[] bootstrapSeeds = new long[memberCount];
+        long[] memberSeeds = new long[memberCount];
+        for (int m = 0; m < memberCount; m++) {
+            bootstrapSeeds[m] = rand.nextLong();
+            memberSeeds[m] = rand.nextLong();
+        }
+
+        BinnedFeatures binned = memberFactory == null ? BinnedFeatures.fit(featuresOnlyDataMatrix, BinnedFeatures.MAX_BINS) : null;
+        int featuresPerSplit = randomFeatureSubsets ? featuresPerSplit(featuresOnlyDataMatrix.getColCount()) : 0;
+
+        members = new SupervisedLearner[memberCount];
+        ParallelLoops.forEach(memberCount, m -> {
+            int[] counts = bootstrapCounts(bootstrapSeeds[m], rowCount);
+            int drawnRowCount = 0;
+            for (int row = 0; row < rowCount; row++) {
+                if (counts[row] > 0)
+                    drawnRowCount++;
+            }
+            int[] rowIndices = new int[drawnRowCount];
+            double[] rowWeights = new double[drawnRowCount];
+            for (int row = 0, i = 0; row < rowCount; row++) {
+                if (counts[row] > 0) {
+                    rowIndices[i] = row;
+                    rowWeights[i++] = counts[row];
+                }
+            }
+            if (memberFactory == null) {
+                DecisionTree tree = new DecisionTree(Integer.MAX_VALUE, 1, BinnedFeatures.MAX_BINS, featuresPerSplit, memberSeeds[m]);
+                tree.train(binned, labelsOnlyDataMatrix, rowIndices, rowWeights);
+                members[m] = tree;
+            } else {
+                SupervisedLearner member = memberFactory.get();
+                member.train(featuresOnlyDataMatrix, labelsOnlyDataMatrix, rowIndices, rowWeights);
+                members[m] = member;
+            }
+        });
+
+        outOfBagAccuracy = measureOutOfBagAccuracy(featuresOnlyDataMatrix, labelsOnlyDataMatrix, bootstrapSeeds);
+    }
+
+    // The usual defaults: the square root of the feature count for classification, a third for regression
+    int featuresPerSplit(int featureCount) {
+        int count = labelValues > 0 ? (int) Math.round(Math.sqrt(featureCount)) : featureCount / 3;
+        return Math.max(1, count);
+    }
+
+    // Draws rowCount rows with replacement and returns how many times each row was drawn
+    static int[] bootstrapCounts(long seed, int rowCount) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] counts = new int[rowCount];
+        for (int i = 0; i < rowCount; i++)
+            counts[random.nextInt(rowCount)]++;
+        return counts;
+    }
+
+    // Predicts every row with the members that did not draw it. Returns the accuracy for a
+    // nominal label or the RMSE for a continuous one, over the rows that were out of bag at
+    // least once (NaN if there are none). The bootstrap counts are redrawn from their seeds.
+    double measureOutOfBagAccuracy(DataMatrix featuresOnlyDataMatrix, DataMatrix labelsOnlyDataMatrix, long[] bootstrapSeeds) throws Exception {
+        int rowCount = featuresOnlyDataMatrix.getRowCount();
+        int width = labelValues > 0 ? labelValues : 1;
+        double[] votes = new double[rowCount * width];
+        int[] voteCounts = new int[rowCount];
+        for (int m = 0; m < members.length; m++) {
+            int[] counts = bootstrapCounts(bootstrapSeeds[m], rowCount);
+            int outOfBagCount = 0;
+            for (int row = 0; row < rowCount; row++) {
+                if (counts[row] == 0)
+                    counts[outOfBagCount++] = row; // reuse counts to hold the out-of-bag rows
+            }
+            double[][] featureVectors = new double[outOfBagCount][];
+            double[][] predictions = new double[outOfBagCount][1];
+            for (int i = 0; i < outOfBagCount; i++)
+                featureVectors[i] = featuresOnlyDataMatrix.getRow(counts[i]);
+            members[m].predictBatchLabelsFromFeatures(featureVectors, predictions);
+            for (int i = 0; i < outOfBagCount; i++) {
+                int row = counts[i];
+                if (labelValues > 0)
+                    votes[row * width + (int) predictions[i][0]]++;
+                else
+                    votes[row] += predictions[i][0];
+                voteCounts[row]++;
+            }
+        }
+
+        int scoredCount = 0;
+        double total = 0;
+        for (int row = 0; row < rowCount; row++) {
+            double label = labelsOnlyDataMatrix.getValueAt(row, 0);
+            if (voteCounts[row] == 0 || label == DataMatrix.MISSING)
+                continue;
+            scoredCount++;
+            if (labelValues > 0) {
+                if (majority(votes, row * width, width) == (int) label)
+                    total++;
+            } else {
+                double delta = label - votes[row] / voteCounts[row];
+                total += delta * delta;
+            }
+        }
+        if (scoredCount == 0)
+            return Double.NaN;
+        return labelValues > 0 ? total / scoredCount : Math.sqrt(total / scoredCount);
+    }
+
+    // Returns the class with the most votes, breaking ties toward the lower class
+    static int majority(double[] votes, int offset, int width) {
+        int best = 0;
+        for (int c = 1; c < width; c++) {
+            if (votes[offset + c] > votes[offset + best])
+                best = c;
+        }
+        return best;
+    }
+
+    // Returns the out-of-bag accuracy (or RMSE for a continuous label) measured during training (NaN if no row was ever out of bag)
+    public double getOutOfBagAccuracy() { return outOfBagAccuracy; }
+
+    @Override
+    public void predictInstanceLabelsFromFeatures(double[] featureVector, double[] arrayInWhichToPutLabels) throws Exception {
+        double[] memberPredictions = new double[members.length];
+        if (members.length >= PARALLEL_MEMBERS) {
+            ParallelLoops.forEach(members.length, m -> {
+                double[] prediction = new double[1];
+                members[m].predictInstanceLabelsFromFeatures(featureVector, prediction);
+                memberPredictions[m] = prediction[0];
+            });
+        } else {
+            double[] prediction = new double[1];
+            for (int m = 0; m < members.length; m++) {
+                members[m].predictInstanceLabelsFromFeatures(featureVector, prediction);
+                memberPredictions[m] = prediction[0];
+            }
+        }
+        arrayInWhichToPutLabels[0] = combine(memberPredictions);
+    }
+
+    double combine(double[] memberPredictions) {
+        if (labelValues == 0) {
+            double sum = 0;
+            for (double prediction : memberPredictions)
+                sum += prediction;
+            return sum / memberPredictions.length;
+        }
+        double[] votes = new double[labelValues];
+        for (double prediction : memberPredictions)
+            votes[(int) prediction]++;
+        return majority(votes, 0, labelValues);
+    }
+
+    // Scores blocks of instances in parallel. Within a block each member predicts the whole
+    // block at once before the votes are tallied.
+    @Override
+    public void predictBatchLabelsFromFeatures(double[][] featureVectors, double[][] arrayInWhichToPutLabels) throws Exception {
+        int blockCount = (featureVectors.length + BATCH_BLOCK_ROWS - 1) / BATCH_BLOCK_ROWS;
+        ParallelLoops.forEach(blockCount, block -> {
+            int start = block * BATCH_BLOCK_ROWS;
+            int end = Math.min(start + BATCH_BLOCK_ROWS, featureVectors.length);
+            double[][] blockFeatures = new double[end - start][];
+            double[][] blockPredictions = new double[end - start][1];
+            for (int i = start; i < end; i++)
+                blockFeatures[i - start] = featureVectors[i];
+            double[][] memberPredictions = new double[end - start][members.length];
+            for (int m = 0; m < members.length; m++) {
+                members[m].predictBatchLabelsFromFeatures(blockFeatures, blockPredictions);
+                for (int i = 0; i < blockPredictions.length; i++)
+                    memberPredictions[i][m] = blockPredictions[i][0];
+            }
+            for (int i = start; i < end; i++)
+                arrayInWhichToPutLabels[i][0] = combine(memberPredictions[i - start]);
+        });
+    }
+}
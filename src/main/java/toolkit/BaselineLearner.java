@@ -11,6 +11,7 @@ package toolkit;
  * it's time to find a new learning model.
  */
 public class BaselineLearner extends SupervisedLearner {
+	private static final long serialVersionUID = 1L;
 
 	double[] predictedLabels;
 
@@ -5,6 +5,7 @@
 package toolkit;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.TreeMap;
 import java.util.Map.Entry;
@@ -13,6 +14,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.lang.Exception;
 
 public class DataMatrix {
@@ -24,7 +33,20 @@ public class DataMatrix {
 	List< TreeMap<String, Integer> > valueIndexByAttributeColAndValueName;
 	List< TreeMap<Integer, String> > valueNameByAttributeColAndValueIndex;
 
-	static double MISSING = Double.MAX_VALUE; // representation of missing values in the dataset
+	public static final double MISSING = Double.MAX_VALUE; // representation of missing values in the dataset
+
+	// Bitmaps of the rows that hold a value, by column: bit (row % 64) of word (row / 64) is set
+	// if the cell is not MISSING. A column with no missing values has no bitmap (null), so the
+	// column statistics below run a loop with no test in it, and the others visit only the set
+	// bits. The bitmaps are built on first use and dropped whenever rows are loaded, added or
+	// reordered; setValue keeps them up to date (writing into a row returned by getRow does not).
+	long[][] presentBitsByCol;
+
+	// The number of setValue calls made on this matrix or on any matrix that shares its rows, and
+	// that number when presentBitsByCol was last valid. A write through one matrix makes the
+	// bitmaps of the others stale, and they are rebuilt on their next use.
+	int[] sharedWriteCount = new int[1];
+	int presentBitsWriteCount;
 
 	// Creates a 0x0 matrix. You should call loadARFF or setSize next.
 	public DataMatrix() {}
@@ -49,8 +71,49 @@ public class DataMatrix {
 		}
 	}
 
+	// Creates a matrix whose rows are the specified rows of otherMatrix (a row may be listed more than once).
+	// The rows are shared with otherMatrix, not copied, so changing a value in one changes it in the other.
+	public DataMatrix(DataMatrix otherMatrix, int[] rowIndices) {
+		matrixData = new ArrayList< double[] >(rowIndices.length);
+		for(int j = 0; j < rowIndices.length; j++)
+			matrixData.add(otherMatrix.getRow(rowIndices[j]));
+		attributeNamesByColIndex = new ArrayList<String>(otherMatrix.attributeNamesByColIndex);
+		valueIndexByAttributeColAndValueName = new ArrayList< TreeMap<String, Integer> >(otherMatrix.valueIndexByAttributeColAndValueName);
+		valueNameByAttributeColAndValueIndex = new ArrayList< TreeMap<Integer, String> >(otherMatrix.valueNameByAttributeColAndValueIndex);
+		sharedWriteCount = otherMatrix.sharedWriteCount;
+		gatherPresentBits(otherMatrix, rowIndices);
+	}
+
+	// Builds the bitmaps of a view from those of the matrix whose rows it shares. Views of one
+	// matrix may be made on several threads at once (the members of a forest), so the bitmaps of
+	// otherMatrix are built under its lock.
+	void gatherPresentBits(DataMatrix otherMatrix, int[] rowIndices) {
+		long[][] bits = new long[getColCount()][];
+		long[][] sourceBits = new long[bits.length][];
+		synchronized(otherMatrix) {
+			for(int col = 0; col < bits.length; col++)
+				sourceBits[col] = otherMatrix.getPresentBits(col);
+		}
+		for(int col = 0; col < bits.length; col++) {
+			long[] source = sourceBits[col];
+			if(source == null)
+				continue;
+			long[] present = new long[(rowIndices.length + 63) >>> 6];
+			int presentCount = 0;
+			for(int row = 0; row < rowIndices.length; row++) {
+				long bit = (source[rowIndices[row] >>> 6] >>> rowIndices[row]) & 1L;
+				present[row >>> 6] |= bit << row;
+				presentCount += (int) bit;
+			}
+			bits[col] = presentCount == rowIndices.length ? null : present;
+		}
+		presentBitsByCol = bits;
+		presentBitsWriteCount = sharedWriteCount[0];
+	}
+
 	// Adds a copy of the specified portion of otherMatrix to this matrix
 	public void add(DataMatrix otherMatrix, int rowStart, int colStart, int rowCount) throws Exception {
+		presentBitsByCol = null;
 		if(colStart + getColCount() > otherMatrix.getColCount())
 			throw new Exception("out of range");
 		for(int i = 0; i < getColCount(); i++) {
@@ -68,6 +131,7 @@ public class DataMatrix {
 
 	// Resizes this matrix (and sets all attributes to be continuous). This writes over any data currently in the matrix
 	public void setSize(int rows, int cols) {
+		presentBitsByCol = null;
 		matrixData = new ArrayList< double[] >();
 		for(int j = 0; j < rows; j++) {
 			double[] row = new double[cols];
@@ -85,6 +149,7 @@ public class DataMatrix {
 
 	// Loads from an ARFF file
 	public void loadArff(String filename) throws Exception, FileNotFoundException {
+		presentBitsByCol = null;
 		matrixData = new ArrayList<double[]>();
 		attributeNamesByColIndex = new ArrayList<String>();
 		valueIndexByAttributeColAndValueName = new ArrayList< TreeMap<String, Integer> >();
@@ -195,6 +260,79 @@ public class DataMatrix {
 		fileScanner.close();
 	}
 
+	// Loads from a file in the binary format of DataWriter
+	public void loadBinary(String filename) throws Exception {
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(DataWriter.BINARY_BUFFER_BYTES);
+			buffer.flip();
+			fill(channel, buffer, 20);
+			if(buffer.getInt() != DataWriter.BINARY_MAGIC)
+				throw new Exception("Not a binary data file: " + filename);
+			int version = buffer.getInt();
+			if(version != DataWriter.BINARY_VERSION)
+				throw new Exception("Unsupported version " + version + " of the binary format: " + filename);
+			int cols = buffer.getInt();
+			long rows = buffer.getLong();
+			if(cols < 0 || rows < 0 || rows > Integer.MAX_VALUE)
+				throw new Exception("Corrupt binary data file: " + filename);
+
+			presentBitsByCol = null;
+			attributeNamesByColIndex = new ArrayList<String>();
+			valueIndexByAttributeColAndValueName = new ArrayList< TreeMap<String, Integer> >();
+			valueNameByAttributeColAndValueIndex = new ArrayList< TreeMap<Integer, String> >();
+			for(int col = 0; col < cols; col++) {
+				attributeNamesByColIndex.add(readString(channel, buffer));
+				TreeMap<String, Integer> ste = new TreeMap<String, Integer>();
+				TreeMap<Integer, String> ets = new TreeMap<Integer, String>();
+				fill(channel, buffer, 4);
+				int vals = buffer.getInt();
+				for(int value = 0; value < vals; value++) {
+					String name = readString(channel, buffer);
+					ste.put(name, value);
+					ets.put(value, name);
+				}
+				valueIndexByAttributeColAndValueName.add(ste);
+				valueNameByAttributeColAndValueIndex.add(ets);
+			}
+
+			matrixData = new ArrayList<double[]>((int) rows);
+			for(int row = 0; row < rows; row++) {
+				double[] newRow = new double[cols];
+				for(int col = 0; col < cols; col++) {
+					if(buffer.remaining() < 8)
+						fill(channel, buffer, 8);
+					newRow[col] = buffer.getDouble();
+				}
+				matrixData.add(newRow);
+			}
+		}
+	}
+
+	// Reads from the channel until the buffer holds at least count unread bytes
+	static void fill(FileChannel channel, ByteBuffer buffer, int count) throws Exception {
+		if(buffer.remaining() >= count)
+			return;
+		if(count > buffer.capacity())
+			throw new Exception("A value of " + count + " bytes does not fit in the buffer");
+		buffer.compact();
+		while(buffer.position() < count) {
+			if(channel.read(buffer) < 0)
+				throw new Exception("Unexpected end of the binary data file");
+		}
+		buffer.flip();
+	}
+
+	static String readString(FileChannel channel, ByteBuffer buffer) throws Exception {
+		fill(channel, buffer, 4);
+		int length = buffer.getInt();
+		if(length < 0)
+			throw new Exception("Corrupt binary data file");
+		fill(channel, buffer, length);
+		byte[] utf8 = new byte[length];
+		buffer.get(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+
 	// Returns the number of rows in the matrix
 	public int getRowCount() { return matrixData.size(); }
 
@@ -208,7 +346,67 @@ public class DataMatrix {
 	public double getValueAt(int row, int col) { return matrixData.get(row)[col]; }
 
 	// Sets the value at the specified row and column
-	public void setValue(int row, int col, double newValue) { getRow(row)[col] = newValue; }
+	public void setValue(int row, int col, double newValue) {
+		getRow(row)[col] = newValue;
+		if(presentBitsWriteCount != sharedWriteCount[0]++)
+			presentBitsByCol = null;
+		presentBitsWriteCount = sharedWriteCount[0];
+		if(presentBitsByCol != null) {
+			long[] present = presentBitsByCol[col];
+			if(newValue == MISSING) {
+				if(present == null)
+					present = presentBitsByCol[col] = allPresentBits();
+				present[row >>> 6] &= ~(1L << row);
+			}
+			else if(present != null)
+				present[row >>> 6] |= 1L << row;
+		}
+	}
+
+	// Returns true if the specified cell holds no value
+	public boolean isMissing(int row, int col) {
+		long[] present = getPresentBits(col);
+		return present != null && (present[row >>> 6] & (1L << row)) == 0;
+	}
+
+	// Returns true if any cell of the specified column holds no value
+	public boolean hasMissingValues(int col) { return getPresentBits(col) != null; }
+
+	// Returns the bitmap of the rows that hold a value in the column, or null if they all do
+	long[] getPresentBits(int col) {
+		if(presentBitsByCol == null || presentBitsWriteCount != sharedWriteCount[0]) {
+			// One pass over the rows sets the bits of every column
+			int rowCount = getRowCount();
+			int colCount = getColCount();
+			long[][] bits = new long[colCount][(rowCount + 63) >>> 6];
+			for(int row = 0; row < rowCount; row++) {
+				double[] r = getRow(row);
+				int word = row >>> 6;
+				long bit = 1L << row;
+				for(int c = 0; c < colCount; c++)
+					bits[c][word] |= r[c] != MISSING ? bit : 0;
+			}
+			for(int c = 0; c < colCount; c++) {
+				int presentCount = 0;
+				for(long w : bits[c])
+					presentCount += Long.bitCount(w);
+				if(presentCount == rowCount)
+					bits[c] = null;
+			}
+			presentBitsByCol = bits;
+			presentBitsWriteCount = sharedWriteCount[0];
+		}
+		return presentBitsByCol[col];
+	}
+
+	// Returns a bitmap with the bit of every row set
+	long[] allPresentBits() {
+		long[] bits = new long[(getRowCount() + 63) >>> 6];
+		Arrays.fill(bits, -1L);
+		if((getRowCount() & 63) != 0)
+			bits[bits.length - 1] = (1L << getRowCount()) - 1;
+		return bits;
+	}
 
 	// Returns the name of the specified attribute
 	public String getAttributeNameAtColumn(int col) { return attributeNamesByColIndex.get(col); }
@@ -226,18 +424,28 @@ public class DataMatrix {
 	// Returns true if the attribute at column is continuous
 	public boolean isAttributeAtColumnContinuous(int col) { return getValueCountForAttributeAtColumn(col) == 0; }
 
-	// Shuffles the row order
-	void shuffleRowOrder(Random rand) {
+	// Shuffles the row order. Returns, for each row, the position it held before the shuffle.
+	int[] shuffleRowOrder(Random rand) {
+		presentBitsByCol = null;
+		int[] previousPosition = new int[getRowCount()];
+		for(int j = 0; j < previousPosition.length; j++)
+			previousPosition[j] = j;
 		for(int n = getRowCount(); n > 0; n--) {
 			int i = rand.nextInt(n);
 			double[] tmp = getRow(n - 1);
 			matrixData.set(n - 1, getRow(i));
 			matrixData.set(i, tmp);
+			int tmpPosition = previousPosition[n - 1];
+			previousPosition[n - 1] = previousPosition[i];
+			previousPosition[i] = tmpPosition;
 		}
+		return previousPosition;
 	}
 
 	// Shuffles the row order with a buddy matrix 
 	void shuffleRowOrderWithBuddyMatrix(Random rand, DataMatrix buddy) {
+		presentBitsByCol = null;
+		buddy.presentBitsByCol = null;
 		for (int n = getRowCount(); n > 0; n--) {
 			int i = rand.nextInt(n);
 			double[] tmp = getRow(n - 1);
@@ -252,13 +460,20 @@ public class DataMatrix {
 
 	// Returns the mean of the specified column
 	public double getColumnMean(int col) {
+		long[] present = getPresentBits(col);
 		double sum = 0;
 		int count = 0;
-		for(int i = 0; i < getRowCount(); i++) {
-			double v = getValueAt(i, col);
-			if(v != MISSING) {
-				sum += v;
-				count++;
+		if(present == null) {
+			for(int i = 0; i < getRowCount(); i++)
+				sum += matrixData.get(i)[col];
+			count = getRowCount();
+		}
+		else {
+			for(int w = 0; w < present.length; w++) {
+				for(long bits = present[w]; bits != 0; bits &= bits - 1) {
+					sum += matrixData.get((w << 6) + Long.numberOfTrailingZeros(bits))[col];
+					count++;
+				}
 			}
 		}
 		return sum / count;
@@ -266,44 +481,86 @@ public class DataMatrix {
 
 	// Returns the min value in the specified column
 	public double getColumnMin(int col) {
-		double m = MISSING;
-		for(int i = 0; i < getRowCount(); i++) {
-			double v = getValueAt(i, col);
-			if(v != MISSING)
-			{
-				if(m == MISSING || v < m)
-					m = v;
+		long[] present = getPresentBits(col);
+		double m = Double.POSITIVE_INFINITY;
+		int count = 0;
+		if(present == null) {
+			for(int i = 0; i < getRowCount(); i++) {
+				double v = matrixData.get(i)[col];
+				m = v < m ? v : m;
+			}
+			count = getRowCount();
+		}
+		else {
+			for(int w = 0; w < present.length; w++) {
+				for(long bits = present[w]; bits != 0; bits &= bits - 1) {
+					double v = matrixData.get((w << 6) + Long.numberOfTrailingZeros(bits))[col];
+					m = v < m ? v : m;
+					count++;
+				}
 			}
 		}
-		return m;
+		return count == 0 ? MISSING : m;
 	}
 
 	// Returns the max value in the specified column
 	public double getColumnMax(int col) {
-		double m = MISSING;
-		for(int i = 0; i < getRowCount(); i++) {
-			double v = getValueAt(i, col);
-			if(v != MISSING)
-			{
-				if(m == MISSING || v > m)
-					m = v;
+		long[] present = getPresentBits(col);
+		double m = Double.NEGATIVE_INFINITY;
+		int count = 0;
+		if(present == null) {
+			for(int i = 0; i < getRowCount(); i++) {
+				double v = matrixData.get(i)[col];
+				m = v > m ? v : m;
 			}
+			count = getRowCount();
 		}
-		return m;
+		else {
+			for(int w = 0; w < present.length; w++) {
+				for(long bits = present[w]; bits != 0; bits &= bits - 1) {
+					double v = matrixData.get((w << 6) + Long.numberOfTrailingZeros(bits))[col];
+					m = v > m ? v : m;
+					count++;
+				}
+			}
+		}
+		return count == 0 ? MISSING : m;
 	}
 
-	// Returns the most common value in the specified column
+	// Returns the most common value in the specified column (the lowest one if there is a tie)
 	public double getMostCommonValueForColumn(int col) {
+		long[] present = getPresentBits(col);
+		int vals = getValueCountForAttributeAtColumn(col);
+		if(vals > 0) {
+			// Nominal values are counted by index
+			int[] counts = new int[vals];
+			if(present == null) {
+				for(int i = 0; i < getRowCount(); i++)
+					counts[(int) matrixData.get(i)[col]]++;
+			}
+			else {
+				for(int w = 0; w < present.length; w++) {
+					for(long bits = present[w]; bits != 0; bits &= bits - 1)
+						counts[(int) matrixData.get((w << 6) + Long.numberOfTrailingZeros(bits))[col]]++;
+				}
+			}
+			int best = -1;
+			for(int value = 0; value < vals; value++) {
+				if(counts[value] > 0 && (best < 0 || counts[value] > counts[best]))
+					best = value;
+			}
+			return best < 0 ? MISSING : best;
+		}
 		TreeMap<Double, Integer> tm = new TreeMap<Double, Integer>();
 		for(int i = 0; i < getRowCount(); i++) {
+			if(present != null && (present[i >>> 6] & (1L << i)) == 0)
+				continue;
 			double v = getValueAt(i, col);
-			if(v != MISSING) {
-				Integer count = tm.get(v);
-				if(count == null)
-					tm.put(v, 1);
-				else
-					tm.put(v, count.intValue() + 1);
-			}
+			Integer count = tm.get(v);
+			if(count == null)
+				tm.put(v, 1);
+			else
+				tm.put(v, count.intValue() + 1);
 		}
 		int maxCount = 0;
 		double val = MISSING;
@@ -325,11 +582,7 @@ public class DataMatrix {
 				double min = getColumnMin(i);
 				double max = getColumnMax(i);
 				normalizationRanges[i] = new double[] {min, max};
-				for(int j = 0; j < getRowCount(); j++) {
-					double v = getValueAt(j, i);
-					if(v != MISSING)
-						setValue(j, i, (v - min) / (max - min));
-				}
+				normalizeColumn(i, min, max);
 			}
 		}
 		return normalizationRanges;
@@ -337,48 +590,42 @@ public class DataMatrix {
 	
 	void normalize(double[][] normalizationRanges) {
 		for(int i = 0; i < getColCount(); i++) {
-			if(getValueCountForAttributeAtColumn(i) == 0) {
-				double min = normalizationRanges[i][0];
-				double max = normalizationRanges[i][1];
-				for(int j = 0; j < getRowCount(); j++) {
-					double v = getValueAt(j, i);
-					if(v != MISSING)
-						setValue(j, i, (v - min) / (max - min));
+			if(getValueCountForAttributeAtColumn(i) == 0)
+				normalizeColumn(i, normalizationRanges[i][0], normalizationRanges[i][1]);
+		}
+	}
+
+	// Maps the values of the column from [min, max] to [0, 1], leaving missing values as they are
+	void normalizeColumn(int col, double min, double max) {
+		long[] present = getPresentBits(col);
+		if(present == null) {
+			for(int j = 0; j < getRowCount(); j++) {
+				double[] r = matrixData.get(j);
+				r[col] = (r[col] - min) / (max - min);
+			}
+		}
+		else {
+			for(int w = 0; w < present.length; w++) {
+				for(long bits = present[w]; bits != 0; bits &= bits - 1) {
+					double[] r = matrixData.get((w << 6) + Long.numberOfTrailingZeros(bits));
+					r[col] = (r[col] - min) / (max - min);
 				}
 			}
 		}
 	}
 
+	// Prints the matrix to standard output in ARFF (DataWriter reports failures as checked exceptions)
 	public void print() {
-		System.out.println("@RELATION Untitled");
-		for(int i = 0; i < attributeNamesByColIndex.size(); i++) {
-			System.out.print("@ATTRIBUTE " + attributeNamesByColIndex.get(i));
-			int vals = getValueCountForAttributeAtColumn(i);
-			if(vals == 0)
-				System.out.println(" CONTINUOUS");
-			else
-			{
-				System.out.print(" {");
-				for(int j = 0; j < vals; j++) {
-					if(j > 0)
-						System.out.print(", ");
-					System.out.print(valueNameByAttributeColAndValueIndex.get(i).get(j));
-				}
-				System.out.println("}");
-			}
+		try {
+			DataWriter dataWriter = new DataWriter(new OutputStreamWriter(System.out), "arff");
+			dataWriter.writeMatrix(this);
+			dataWriter.close();
 		}
-		System.out.println("@DATA");
-		for(int i = 0; i < getRowCount(); i++) {
-			double[] r = getRow(i);
-			for(int j = 0; j < r.length; j++) {
-				if(j > 0)
-					System.out.print(", ");
-				if(getValueCountForAttributeAtColumn(j) == 0)
-					System.out.print(r[j]);
-				else
-					System.out.print(valueNameByAttributeColAndValueIndex.get(j).get((int)r[j]));
-			}
-			System.out.println();
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		catch(Exception e) {
+			throw new IllegalStateException(e);
 		}
 	}
 }
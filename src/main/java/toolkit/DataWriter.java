@@ -0,0 +1,461 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+package toolkit;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes matrices as ARFF, CSV or binary files, one row at a time, so that a large
+ * dataset (or the predictions of a learner on one) can be written without building its
+ * text in memory.
+ *
+ * Text goes into a 64 KB char buffer that is handed to the underlying Writer only when it
+ * fills, and binary output into a 1 MB byte buffer written to a FileChannel. The names of
+ * nominal values are looked up in arrays indexed by column and value (built once from the
+ * header), and numbers are formatted straight into the buffer: whole numbers digit by
+ * digit, others through a reused StringBuilder, so no String is built per cell. A number
+ * is written as Double.toString would write it, so loadArff reads back the same value.
+ *
+ * The binary format, read by DataMatrix.loadBinary, is big-endian: the int 0x4D4C544B
+ * ("MLTK"), the int version (1), the column count (int) and row count (long), then for
+ * each column its name and value count (int) followed by the names of its values, then
+ * the rows as doubles. A string is its UTF-8 length (int) followed by its UTF-8 bytes.
+ * Missing values are stored as DataMatrix.MISSING.
+ */
+public class DataWriter {
+
+	static final int TEXT_BUFFER_CHARS = 1 << 16;
+	static final int BINARY_BUFFER_BYTES = 1 << 20;
+	static final int BINARY_MAGIC = 0x4D4C544B;
+	static final int BINARY_VERSION = 1;
+
+	String format; // "arff", "csv" or "binary"
+	Writer writer; // for text formats
+	FileChannel channel; // for the binary format
+	boolean closeOutput;
+
+	char[] text;
+	int textLength;
+	StringBuilder number = new StringBuilder(32);
+	char[] digits = new char[20];
+	ByteBuffer bytes;
+
+	// Header state
+	char[][][] valueNameChars; // by column and value index, null for a continuous column
+	int colCount = -1;
+	long expectedRowCount;
+	long rowCount;
+
+	/**
+	 *
+	 * @param filename the file to create (or replace)
+	 * @throws Exception
+	 *
+	 * The format follows the extension of the file: ".arff", ".csv" or ".bin".
+	 */
+	public DataWriter(String filename) throws Exception {
+		format = formatOf(filename);
+		closeOutput = true;
+		if(format.equals("binary")) {
+			channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			bytes = ByteBuffer.allocateDirect(BINARY_BUFFER_BYTES);
+		} else {
+			writer = new OutputStreamWriter(Files.newOutputStream(Paths.get(filename)), StandardCharsets.UTF_8);
+			text = new char[TEXT_BUFFER_CHARS];
+		}
+	}
+
+	/**
+	 *
+	 * @param writer where to write the text, which close() flushes but does not close
+	 * @param format "arff" or "csv"
+	 * @throws Exception
+	 */
+	public DataWriter(Writer writer, String format) throws Exception {
+		if(!format.equals("arff") && !format.equals("csv"))
+			throw new Exception("Unrecognized text format: " + format);
+		this.format = format;
+		this.writer = writer;
+		text = new char[TEXT_BUFFER_CHARS];
+	}
+
+	// Returns "arff", "csv" or "binary", following the extension of the file
+	static String formatOf(String filename) throws Exception {
+		String lower = filename.toLowerCase();
+		if(lower.endsWith(".arff"))
+			return "arff";
+		if(lower.endsWith(".csv"))
+			return "csv";
+		if(lower.endsWith(".bin"))
+			return "binary";
+		throw new Exception("Expected a file name ending in .arff, .csv or .bin: " + filename);
+	}
+
+	/**
+	 *
+	 * @param dataMatrix the matrix to write
+	 * @param filename the file to create, in the format of its extension
+	 * @throws Exception
+	 */
+	public static void write(DataMatrix dataMatrix, String filename) throws Exception {
+		DataWriter dataWriter = new DataWriter(filename);
+		try {
+			dataWriter.writeMatrix(dataMatrix);
+		}
+		catch(Exception e) {
+			dataWriter.abandon();
+			throw e;
+		}
+		dataWriter.close();
+	}
+
+	/**
+	 *
+	 * @param learner a trained learner
+	 * @param featuresOnlyDataMatrix the rows to predict
+	 * @param labelsOnlyDataMatrix their true labels, or null to leave them out
+	 * @param filename the file to create, in the format of its extension
+	 * @throws Exception
+	 *
+	 * Writes each row's features, its true label (if given) and the learner's prediction,
+	 * in a column named "prediction" with the values of the label (or as a number, when the
+	 * labels are left out). Rows are predicted a batch at a time, each batch written as soon
+	 * as it is predicted.
+	 */
+	public static void writePredictions(SupervisedLearner learner, DataMatrix featuresOnlyDataMatrix, DataMatrix labelsOnlyDataMatrix,
+			String filename) throws Exception {
+		if(labelsOnlyDataMatrix != null && labelsOnlyDataMatrix.getRowCount() != featuresOnlyDataMatrix.getRowCount())
+			throw new Exception("Expected the features and labels to have the same number of rows");
+		if(labelsOnlyDataMatrix != null && labelsOnlyDataMatrix.getColCount() != 1)
+			throw new Exception("Sorry, this method currently only supports one-dimensional labels");
+		int featureColCount = featuresOnlyDataMatrix.getColCount();
+		int labelColCount = labelsOnlyDataMatrix == null ? 0 : 1;
+		String[] names = new String[featureColCount + labelColCount + 1];
+		String[][] valueNames = new String[names.length][];
+		for(int col = 0; col < featureColCount; col++) {
+			names[col] = featuresOnlyDataMatrix.getAttributeNameAtColumn(col);
+			valueNames[col] = valueNamesOf(featuresOnlyDataMatrix, col);
+		}
+		if(labelsOnlyDataMatrix != null) {
+			names[featureColCount] = labelsOnlyDataMatrix.getAttributeNameAtColumn(0);
+			valueNames[featureColCount] = valueNamesOf(labelsOnlyDataMatrix, 0);
+		}
+		names[names.length - 1] = "prediction";
+		valueNames[names.length - 1] = valueNames[featureColCount];
+
+		int rowCount = featuresOnlyDataMatrix.getRowCount();
+		int batchSize = Math.max(1, Math.min(rowCount, SupervisedLearner.PREDICTION_BATCH_SIZE));
+		double[][] featuresForBatch = new double[batchSize][];
+		double[][] predictedLabelsForBatch = new double[batchSize][1];
+		double[] tail = new double[labelColCount + 1];
+		DataWriter dataWriter = new DataWriter(filename);
+		try {
+			dataWriter.writeHeader("predictions", names, valueNames, rowCount);
+			for(int batchStart = 0; batchStart < rowCount; batchStart += batchSize) {
+				int count = learner.predictBatch(featuresOnlyDataMatrix, batchStart, featuresForBatch, predictedLabelsForBatch);
+				for(int j = 0; j < count; j++) {
+					if(labelsOnlyDataMatrix != null)
+						tail[0] = labelsOnlyDataMatrix.getValueAt(batchStart + j, 0);
+					tail[labelColCount] = predictedLabelsForBatch[j][0];
+					dataWriter.writeRow(featuresOnlyDataMatrix.getRow(batchStart + j), tail);
+				}
+			}
+		}
+		catch(Exception e) {
+			dataWriter.abandon();
+			throw e;
+		}
+		dataWriter.close();
+	}
+
+	// Returns the names of the values of a nominal column by value index, or null for a continuous one
+	static String[] valueNamesOf(DataMatrix dataMatrix, int col) {
+		int valueCount = dataMatrix.getValueCountForAttributeAtColumn(col);
+		if(valueCount == 0)
+			return null;
+		String[] valueNames = new String[valueCount];
+		for(int value = 0; value < valueCount; value++)
+			valueNames[value] = dataMatrix.getAttributeValueName(col, value);
+		return valueNames;
+	}
+
+	/**
+	 *
+	 * @param dataMatrix the matrix to write, header and rows
+	 * @throws Exception
+	 */
+	public void writeMatrix(DataMatrix dataMatrix) throws Exception {
+		String[] names = new String[dataMatrix.getColCount()];
+		String[][] valueNames = new String[names.length][];
+		for(int col = 0; col < names.length; col++) {
+			names[col] = dataMatrix.getAttributeNameAtColumn(col);
+			valueNames[col] = valueNamesOf(dataMatrix, col);
+		}
+		writeHeader("Untitled", names, valueNames, dataMatrix.getRowCount());
+		for(int row = 0; row < dataMatrix.getRowCount(); row++)
+			writeRow(dataMatrix.getRow(row), null);
+	}
+
+	/**
+	 *
+	 * @param relation the name of the relation (used by ARFF only)
+	 * @param names the name of each column
+	 * @param valueNames the names of the values of each column by value index, null for a continuous column
+	 * @param rowCount the number of rows that will be written (checked by the binary format only)
+	 * @throws Exception
+	 */
+	public void writeHeader(String relation, String[] names, String[][] valueNames, long rowCount) throws Exception {
+		if(colCount >= 0)
+			throw new Exception("The header has already been written");
+		colCount = names.length;
+		expectedRowCount = rowCount;
+		valueNameChars = new char[colCount][][];
+		for(int col = 0; col < colCount; col++) {
+			if(valueNames[col] == null)
+				continue;
+			valueNameChars[col] = new char[valueNames[col].length][];
+			for(int value = 0; value < valueNames[col].length; value++)
+				valueNameChars[col][value] = (format.equals("csv") ? csvField(valueNames[col][value]) : valueNames[col][value]).toCharArray();
+		}
+
+		if(format.equals("binary")) {
+			putInt(BINARY_MAGIC);
+			putInt(BINARY_VERSION);
+			putInt(colCount);
+			room(8);
+			bytes.putLong(rowCount);
+			for(int col = 0; col < colCount; col++) {
+				putString(names[col]);
+				putInt(valueNames[col] == null ? 0 : valueNames[col].length);
+				if(valueNames[col] != null) {
+					for(String valueName : valueNames[col])
+						putString(valueName);
+				}
+			}
+		} else if(format.equals("arff")) {
+			append("@RELATION ");
+			append(relation);
+			append('\n');
+			for(int col = 0; col < colCount; col++) {
+				append("@ATTRIBUTE ");
+				append(names[col]);
+				if(valueNames[col] == null)
+					append(" CONTINUOUS");
+				else {
+					append(" {");
+					for(int value = 0; value < valueNames[col].length; value++) {
+						if(value > 0)
+							append(", ");
+						append(valueNames[col][value]);
+					}
+					append('}');
+				}
+				append('\n');
+			}
+			append("@DATA\n");
+		} else {
+			for(int col = 0; col < colCount; col++) {
+				if(col > 0)
+					append(',');
+				append(csvField(names[col]));
+			}
+			append('\n');
+		}
+	}
+
+	/**
+	 *
+	 * @param row the values of the first columns
+	 * @param rest the values of the remaining columns, or null if row holds them all
+	 * @throws Exception
+	 */
+	public void writeRow(double[] row, double[] rest) throws Exception {
+		if(colCount < 0)
+			throw new Exception("The header must be written before the rows");
+		if(row.length + (rest == null ? 0 : rest.length) != colCount)
+			throw new Exception("Expected " + colCount + " values in a row");
+		if(format.equals("binary")) {
+			putDoubles(row);
+			if(rest != null)
+				putDoubles(rest);
+		} else {
+			String separator = format.equals("csv") ? "," : ", ";
+			appendValues(row, 0, separator);
+			if(rest != null) {
+				append(separator);
+				appendValues(rest, row.length, separator);
+			}
+			append('\n');
+		}
+		rowCount++;
+	}
+
+	// Flushes everything written so far to the underlying Writer or file
+	public void flush() throws IOException {
+		if(channel != null) {
+			bytes.flip();
+			while(bytes.hasRemaining())
+				channel.write(bytes);
+			bytes.clear();
+		} else {
+			writer.write(text, 0, textLength);
+			textLength = 0;
+			writer.flush();
+		}
+	}
+
+	/**
+	 *
+	 * @throws Exception
+	 *
+	 * Flushes the output, and closes it if this writer opened it. For the binary format,
+	 * checks that as many rows were written as the header promised.
+	 */
+	public void close() throws Exception {
+		try {
+			flush();
+		}
+		finally {
+			if(closeOutput) {
+				if(channel != null)
+					channel.close();
+				else
+					writer.close();
+			}
+		}
+		if(format.equals("binary") && rowCount != expectedRowCount)
+			throw new Exception("Expected " + expectedRowCount + " rows but " + rowCount + " were written");
+	}
+
+	// Closes the output after a failure, without flushing it
+	void abandon() {
+		try {
+			if(closeOutput) {
+				if(channel != null)
+					channel.close();
+				else
+					writer.close();
+			}
+		}
+		catch(IOException e) {
+			// The first failure is the one worth reporting
+		}
+	}
+
+	void appendValues(double[] values, int firstCol, String separator) throws Exception {
+		for(int i = 0; i < values.length; i++) {
+			if(i > 0)
+				append(separator);
+			double v = values[i];
+			char[][] names = valueNameChars[firstCol + i];
+			if(v == DataMatrix.MISSING)
+				append('?');
+			else if(names == null)
+				appendDouble(v);
+			else {
+				int value = (int) v;
+				if(value < 0 || value >= names.length || value != v)
+					throw new Exception("The value " + v + " is out of range for column " + (firstCol + i));
+				append(names[value]);
+			}
+		}
+	}
+
+	// Appends v as Double.toString(v) would write it
+	void appendDouble(double v) throws IOException {
+		long whole = (long) v;
+		if(whole == v && Math.abs(whole) < 10_000_000 && (whole != 0 || Double.doubleToRawLongBits(v) == 0)) {
+			// Double.toString writes whole numbers below 10^7 as "digits.0"
+			room(22);
+			if(whole < 0) {
+				text[textLength++] = '-';
+				whole = -whole;
+			}
+			int digitCount = 0;
+			do {
+				digits[digitCount++] = (char) ('0' + whole % 10);
+				whole /= 10;
+			} while(whole > 0);
+			while(digitCount > 0)
+				text[textLength++] = digits[--digitCount];
+			text[textLength++] = '.';
+			text[textLength++] = '0';
+		} else {
+			number.setLength(0);
+			number.append(v);
+			room(number.length());
+			number.getChars(0, number.length(), text, textLength);
+			textLength += number.length();
+		}
+	}
+
+	void append(char c) throws IOException {
+		room(1);
+		text[textLength++] = c;
+	}
+
+	void append(char[] chars) throws IOException {
+		room(chars.length);
+		System.arraycopy(chars, 0, text, textLength, chars.length);
+		textLength += chars.length;
+	}
+
+	void append(String s) throws IOException {
+		room(s.length());
+		s.getChars(0, s.length(), text, textLength);
+		textLength += s.length();
+	}
+
+	// Makes room for count more chars (or bytes), writing out the buffer if necessary
+	void room(int count) throws IOException {
+		if(channel != null) {
+			if(bytes.remaining() < count) {
+				flush();
+				if(bytes.remaining() < count)
+					throw new IOException("A value of " + count + " bytes does not fit in the buffer");
+			}
+		} else if(text.length - textLength < count) {
+			writer.write(text, 0, textLength);
+			textLength = 0;
+			if(text.length < count)
+				text = new char[count];
+		}
+	}
+
+	void putInt(int v) throws IOException {
+		room(4);
+		bytes.putInt(v);
+	}
+
+	void putString(String s) throws IOException {
+		byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+		putInt(utf8.length);
+		room(utf8.length);
+		bytes.put(utf8);
+	}
+
+	void putDoubles(double[] values) throws IOException {
+		for(double v : values) {
+			if(bytes.remaining() < 8)
+				flush();
+			bytes.putDouble(v);
+		}
+	}
+
+	// Quotes a CSV field if it holds a comma, quote or line break
+	static String csvField(String s) {
+		if(s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0)
+			return s;
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+}
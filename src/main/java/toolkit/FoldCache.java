@@ -0,0 +1,249 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+package toolkit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache on local disk of the results of evaluation folds, so that rerunning an evaluation
+ * only trains the folds whose configuration changed.
+ *
+ * An entry is addressed by a SHA-256 key of everything the fold's result depends on: a
+ * fingerprint of the dataset (after normalization or preprocessing), the seed of the
+ * fold's learner, the learner's name and options, and the original row indices of the fold's training and
+ * test sets in the order shuffleRowOrder left them. Each entry is a single file,
+ * "key.fold", holding the fold's accuracy, a flag, and (if the flag is set) the trained
+ * model in Java serialization. A learner that cannot be serialized is stored without its
+ * model. The file is written under a temporary name and then renamed, so a reader never
+ * sees half of an entry, and a model is never evicted apart from its result.
+ *
+ * The cache is bounded in size. Reading an entry marks it as recently used (through its
+ * modification time). The size of the entries is added up once, when the cache is opened,
+ * and kept up to date by put; only a write that takes the cache over its limit lists the
+ * directory, and then the least recently used entries are deleted until the cache fits.
+ */
+public class FoldCache {
+
+	File directory;
+	long maxBytes;
+	long totalBytes; // the size of the entries, as far as this cache knows
+
+	/**
+	 *
+	 * @param directory the directory holding the cache (created if necessary)
+	 * @param maxBytes the most bytes the cached files may take up
+	 * @throws IOException
+	 */
+	public FoldCache(String directory, long maxBytes) throws IOException {
+		this.directory = new File(directory);
+		this.maxBytes = maxBytes;
+		Files.createDirectories(this.directory.toPath());
+		for(File file : entryFiles())
+			totalBytes += file.length();
+	}
+
+	/**
+	 *
+	 * @param dataMatrix the matrix to fingerprint
+	 * @return a hex SHA-256 digest of the attributes and every value of the matrix
+	 * @throws Exception
+	 */
+	public static String fingerprint(DataMatrix dataMatrix) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		for(int col = 0; col < dataMatrix.getColCount(); col++) {
+			update(digest, dataMatrix.getAttributeNameAtColumn(col));
+			for(int value = 0; value < dataMatrix.getValueCountForAttributeAtColumn(col); value++)
+				update(digest, dataMatrix.getAttributeValueName(col, value));
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(8 * dataMatrix.getColCount());
+		for(int row = 0; row < dataMatrix.getRowCount(); row++) {
+			buffer.clear();
+			for(double v : dataMatrix.getRow(row))
+				buffer.putDouble(v);
+			digest.update(buffer.array(), 0, buffer.position());
+		}
+		return hex(digest.digest());
+	}
+
+	/**
+	 *
+	 * @param datasetFingerprint the fingerprint of the whole dataset
+	 * @param learnerSeed the seed of the fold's learner
+	 * @param learnerName the name of the learner
+	 * @param learnerOptions the options of the learner
+	 * @param originalRowByPosition the original index of the row at each position of the shuffled dataset
+	 * @param testStart the first position of the fold's test set
+	 * @param testEnd the position after the last one of the fold's test set
+	 * @return the key of the fold
+	 * @throws Exception
+	 *
+	 * The training set is every position outside [testStart, testEnd), in order.
+	 */
+	public static String key(String datasetFingerprint, long learnerSeed, String learnerName, Map<String, String> learnerOptions,
+			int[] originalRowByPosition, int testStart, int testEnd) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		update(digest, datasetFingerprint);
+		update(digest, Long.toString(learnerSeed));
+		update(digest, learnerName);
+		for(Map.Entry<String, String> option : learnerOptions.entrySet()) {
+			update(digest, option.getKey());
+			update(digest, option.getValue());
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(4 * (originalRowByPosition.length + 2));
+		buffer.putInt(testStart);
+		buffer.putInt(testEnd);
+		for(int row : originalRowByPosition)
+			buffer.putInt(row);
+		digest.update(buffer.array());
+		return hex(digest.digest());
+	}
+
+	static void update(MessageDigest digest, String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+		digest.update(bytes);
+	}
+
+	static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(2 * bytes.length);
+		for(byte b : bytes)
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return sb.toString();
+	}
+
+	/**
+	 *
+	 * @param key the key of the fold
+	 * @return the cached accuracy of the fold, or null if it is not cached
+	 *
+	 * Only the head of the entry is read, not the model.
+	 */
+	public Double getAccuracy(String key) {
+		File file = entryFile(key);
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), 16))) {
+			double accuracy = in.readDouble();
+			file.setLastModified(System.currentTimeMillis());
+			return accuracy;
+		}
+		catch(IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * @param key the key of the fold
+	 * @return the cached model of the fold, or null if neither the fold nor its model is cached
+	 */
+	public SupervisedLearner getModel(String key) {
+		File file = entryFile(key);
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+			in.readDouble();
+			if(!in.readBoolean())
+				return null;
+			SupervisedLearner model = (SupervisedLearner) new ObjectInputStream(in).readObject();
+			file.setLastModified(System.currentTimeMillis());
+			return model;
+		}
+		catch(IOException | ClassNotFoundException | ClassCastException e) {
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * @param key the key of the fold
+	 * @param accuracy the accuracy of the fold
+	 * @param model the trained model, or null to store the accuracy alone
+	 * @return true if the model was stored, false if it was not given or cannot be serialized
+	 * @throws IOException
+	 */
+	public boolean put(String key, double accuracy, SupervisedLearner model) throws IOException {
+		Path temporary = Files.createTempFile(directory.toPath(), key, ".tmp");
+		boolean modelStored = false;
+		try {
+			if(model != null) {
+				try {
+					writeEntry(temporary, accuracy, model);
+					modelStored = true;
+				}
+				catch(NotSerializableException e) {
+					// The learner holds something that cannot be serialized, so only the result is kept
+				}
+			}
+			if(!modelStored)
+				writeEntry(temporary, accuracy, null);
+			File entry = entryFile(key);
+			long replacedBytes = entry.length();
+			long entryBytes = Files.size(temporary);
+			Files.move(temporary, entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			totalBytes += entryBytes - replacedBytes;
+		}
+		finally {
+			Files.deleteIfExists(temporary);
+		}
+		if(totalBytes > maxBytes)
+			evict();
+		return modelStored;
+	}
+
+	static void writeEntry(Path path, double accuracy, SupervisedLearner model) throws IOException {
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			out.writeDouble(accuracy);
+			out.writeBoolean(model != null);
+			if(model != null) {
+				ObjectOutputStream objects = new ObjectOutputStream(out);
+				objects.writeObject(model);
+				objects.flush();
+			}
+		}
+	}
+
+	File entryFile(String key) { return new File(directory, key + ".fold"); }
+
+	File[] entryFiles() {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(".fold"));
+		return files == null ? new File[0] : files;
+	}
+
+	// Deletes the least recently used entries until the cache fits in maxBytes. The total is
+	// recounted from the directory first, in case another process changed the cache.
+	void evict() {
+		File[] files = entryFiles();
+		long total = 0;
+		for(File file : files)
+			total += file.length();
+		if(total > maxBytes) {
+			List<File> byAge = new ArrayList<File>(Arrays.asList(files));
+			byAge.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+			for(File file : byAge) {
+				if(total <= maxBytes)
+					break;
+				long length = file.length();
+				if(file.delete())
+					total -= length;
+			}
+		}
+		totalBytes = total;
+	}
+}
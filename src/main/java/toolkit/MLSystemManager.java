@@ -4,20 +4,30 @@
 // ----------------------------------------------------------------
 package toolkit;
 
+import java.util.Map;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
 
 import learners.Perceptron;
 import learners.NeuralNet;
 import learners.DecisionTree;
+import learners.HierarchicalAgglomerativeClusterer;
 import learners.InstanceBasedLearner;
+import learners.KMeansClusterer;
+import learners.RandomForest;
 
 public class MLSystemManager {
+
+	// Options for the learning algorithm given with -O name=value
+	Map<String, String> learnerOptions = new TreeMap<String, String>();
 	
 	/**
 	 *  When you make a new learning algorithm, you should add a line for it to this method.
 	 *  Note that rand is a random seed generator that can be fixed to facilitate debugging.
 	 *  This parameter is controlled in the run method, but should be passed as a parameter 
-	 *  to any learner that requires randomization.
+	 *  to any learner that requires randomization. Options given on the command line with
+	 *  -O name=value can be read with getOption.
 	 */
 	public SupervisedLearner getLearner(String model, Random rand) throws Exception
 	{
@@ -26,11 +36,142 @@ public class MLSystemManager {
 			case "perceptron": return new Perceptron(rand);
 			case "neuralnet": return new NeuralNet(rand);
 			case "decisiontree": return new DecisionTree();
-			case "knn": return new InstanceBasedLearner();
+			case "knn": return new InstanceBasedLearner(
+					Integer.parseInt(getOption("k", "3")),
+					Boolean.parseBoolean(getOption("weighted", "false")),
+					getOption("index", "auto"),
+					Integer.parseInt(getOption("M", "16")),
+					Integer.parseInt(getOption("efConstruction", "200")),
+					Integer.parseInt(getOption("efSearch", "50")),
+					getOption("reduction", "none"));
+			case "bagging": return new RandomForest(rand, 100, false);
+			case "randomforest": return new RandomForest(rand, 100, true);
 			default: throw new Exception("Unrecognized model: " + model);
 		}
 	}
 
+	// Returns the value of a learner option, or defaultValue if it was not given
+	String getOption(String name, String defaultValue) {
+		String value = learnerOptions.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	// Prints what the learner measured about itself while training, if anything
+	void printTrainingStatistics(SupervisedLearner supervisedLearner, DataMatrix labelsOnlyDataMatrix) {
+		if (supervisedLearner instanceof RandomForest) {
+			double outOfBagAccuracy = ((RandomForest) supervisedLearner).getOutOfBagAccuracy();
+			if (!Double.isNaN(outOfBagAccuracy))
+				System.out.println((labelsOnlyDataMatrix.isAttributeAtColumnContinuous(0) ? "Out-of-bag RMSE: " : "Out-of-bag accuracy: ") + outOfBagAccuracy);
+		}
+		if (supervisedLearner instanceof InstanceBasedLearner) {
+			InstanceBasedLearner instanceBasedLearner = (InstanceBasedLearner) supervisedLearner;
+			if (instanceBasedLearner.isApproximate())
+				System.out.println("HNSW recall@" + instanceBasedLearner.getK() + " against exact search: " + instanceBasedLearner.getRecall());
+			if (!instanceBasedLearner.getReduction().equals("none"))
+				System.out.println("Instance reduction (" + instanceBasedLearner.getReduction() + ") kept a fraction of "
+						+ instanceBasedLearner.getRetainedFraction() + " of the rows; leave-one-out training accuracy "
+						+ instanceBasedLearner.getLeaveOneOutAccuracyBefore() + " -> " + instanceBasedLearner.getLeaveOneOutAccuracyAfter());
+		}
+	}
+
+	// Loads an ARFF file, or a binary one written by DataWriter if its name ends in ".bin"
+	void load(DataMatrix dataMatrix, String fileName) throws Exception {
+		if (fileName.toLowerCase().endsWith(".bin"))
+			dataMatrix.loadBinary(fileName);
+		else
+			dataMatrix.loadArff(fileName);
+	}
+
+	// Writes the rows with the learner's predictions to fileName, if one was given
+	void writePredictions(SupervisedLearner supervisedLearner, DataMatrix featuresOnlyDataMatrix, DataMatrix labelsOnlyDataMatrix,
+			String fileName) throws Exception {
+		if (fileName == null)
+			return;
+		double startTime = System.currentTimeMillis();
+		DataWriter.writePredictions(supervisedLearner, featuresOnlyDataMatrix, labelsOnlyDataMatrix, fileName);
+		double elapsedTime = System.currentTimeMillis() - startTime;
+		System.out.println("Predictions written to " + fileName + " (in seconds): " + elapsedTime / 1000.0);
+	}
+
+	// Returns the seed of the learner trained on one fold of one repetition of cross-validation
+	static long foldSeed(long seed, int repetition, int fold) {
+		return new SplittableRandom(seed + 0x9E3779B97F4A7C15L * (((long) repetition << 32) | fold)).nextLong();
+	}
+
+	/**
+	 *
+	 * @param fullDataMatrix the dataset, whose rows are shuffled
+	 * @param learnerName the name of the learner (see getLearner)
+	 * @param seed the seed of the evaluation
+	 * @param rand the generator that shuffles the rows
+	 * @param foldCount the number of folds
+	 * @param foldCache the cache of fold results, or null for none
+	 * @return the test set accuracy of each fold, repetition after repetition
+	 * @throws Exception
+	 *
+	 * Each fold trains a new learner seeded with foldSeed, so a fold's result is the same
+	 * whether it is trained now or read from the cache.
+	 */
+	double[] crossValidate(DataMatrix fullDataMatrix, String learnerName, long seed, Random rand, int foldCount, FoldCache foldCache) throws Exception {
+		String datasetFingerprint = foldCache == null ? null : FoldCache.fingerprint(fullDataMatrix);
+		int[] originalRowByPosition = new int[fullDataMatrix.getRowCount()];
+		for (int i = 0; i < originalRowByPosition.length; i++)
+			originalRowByPosition[i] = i;
+		int repetitions = 1;
+		double[] accuracies = new double[repetitions * foldCount];
+		int trainedFoldCount = 0;
+		boolean modelsStored = true;
+		double elapsedTime = 0.0;
+		for (int j = 0; j < repetitions; j++) {
+			int[] previousPosition = fullDataMatrix.shuffleRowOrder(rand);
+			int[] shuffledOriginalRows = new int[originalRowByPosition.length];
+			for (int i = 0; i < previousPosition.length; i++)
+				shuffledOriginalRows[i] = originalRowByPosition[previousPosition[i]];
+			originalRowByPosition = shuffledOriginalRows;
+			for (int i = 0; i < foldCount; i++) {
+				int firstFoldInstanceIndex = i * fullDataMatrix.getRowCount() / foldCount;
+				int endFoldInstanceIndex = (i + 1) * fullDataMatrix.getRowCount() / foldCount;
+				long learnerSeed = foldSeed(seed, j, i);
+				String foldKey = null;
+				if (foldCache != null) {
+					foldKey = FoldCache.key(datasetFingerprint, learnerSeed, learnerName, learnerOptions, originalRowByPosition, firstFoldInstanceIndex, endFoldInstanceIndex);
+					Double cachedAccuracy = foldCache.getAccuracy(foldKey);
+					if (cachedAccuracy != null) {
+						accuracies[j * foldCount + i] = cachedAccuracy;
+						System.out.println("Rep=" + j + ", Fold=" + i + ", Accuracy=" + cachedAccuracy + " (cached)");
+						continue;
+					}
+				}
+				SupervisedLearner supervisedLearner = getLearner(learnerName, new Random(learnerSeed));
+				DataMatrix trainingSetFeaturesOnlyDataMatrix = new DataMatrix(fullDataMatrix, 0, 0, firstFoldInstanceIndex, fullDataMatrix.getColCount() - 1);
+				DataMatrix trainingSetLabelsOnlyDataMatrix = new DataMatrix(fullDataMatrix, 0, fullDataMatrix.getColCount() - 1, firstFoldInstanceIndex, 1);
+				DataMatrix testSetFeaturesOnlyDataMatrix = new DataMatrix(fullDataMatrix, firstFoldInstanceIndex, 0, endFoldInstanceIndex - firstFoldInstanceIndex, fullDataMatrix.getColCount() - 1);
+				DataMatrix testSetLabelsOnlyDataMatrix = new DataMatrix(fullDataMatrix, firstFoldInstanceIndex, fullDataMatrix.getColCount() - 1, endFoldInstanceIndex - firstFoldInstanceIndex, 1);
+				trainingSetFeaturesOnlyDataMatrix.add(fullDataMatrix, endFoldInstanceIndex, 0, fullDataMatrix.getRowCount() - endFoldInstanceIndex);
+				trainingSetLabelsOnlyDataMatrix.add(fullDataMatrix, endFoldInstanceIndex, fullDataMatrix.getColCount() - 1, fullDataMatrix.getRowCount() - endFoldInstanceIndex);
+				double startTime = System.currentTimeMillis();
+				supervisedLearner.train(trainingSetFeaturesOnlyDataMatrix, trainingSetLabelsOnlyDataMatrix);
+				elapsedTime += System.currentTimeMillis() - startTime;
+				trainedFoldCount++;
+				double predictiveAccuracyOnTestSetForFold = supervisedLearner.measurePredictiveAccuracy(testSetFeaturesOnlyDataMatrix, testSetLabelsOnlyDataMatrix, null);
+				accuracies[j * foldCount + i] = predictiveAccuracyOnTestSetForFold;
+				System.out.println("Rep=" + j + ", Fold=" + i + ", Accuracy=" + predictiveAccuracyOnTestSetForFold);
+				if (foldCache != null && !foldCache.put(foldKey, predictiveAccuracyOnTestSetForFold, supervisedLearner) && modelsStored) {
+					System.out.println("The " + learnerName + " model cannot be serialized, so only the results of its folds are cached");
+					modelsStored = false;
+				}
+			}
+		}
+		if (trainedFoldCount > 0) {
+			elapsedTime /= trainedFoldCount;
+			System.out.println("Average time to train (in seconds): " + elapsedTime / 1000.0);
+		}
+		if (foldCache != null) {
+			System.out.println("Folds read from the cache: " + (accuracies.length - trainedFoldCount));
+		}
+		return accuracies;
+	}
+
 	public void run(String[] args) throws Exception {
 
 		//args = new String[]{"-L", "baseline", "-A", "data/iris.arff", "-E", "cross", "10", "-N"};
@@ -43,7 +184,12 @@ public class MLSystemManager {
 		String evalParameter = parser.getEvalParameter(); //Evaluation parameters specified by the user
 		boolean printConfusionMatrix = parser.getVerbose(); 
 		boolean normalize = parser.getNormalize();
+		String preprocessing = parser.getPreprocessing(); //Scaling of the preprocessing stage, or null for none
 		long seed = parser.getSeed(); //Random seed specified by the user
+		String cacheDirectory = parser.getCacheDirectory(); //Directory of the fold cache, or null for none
+		long cacheMegabytes = parser.getCacheMegabytes();
+		String predictionsFile = parser.getPredictionsFile(); //File for the test set's predictions, or null for none
+		learnerOptions = parser.getLearnerOptions(); //Options for the learning algorithm
 
 		if (seed == 0) {
 			seed = System.currentTimeMillis();
@@ -55,13 +201,21 @@ public class MLSystemManager {
 
 		// Load the ARFF file
 		DataMatrix fullDataMatrix = new DataMatrix();
-		fullDataMatrix.loadArff(fileName);
+		load(fullDataMatrix, fileName);
 		double[][] normalizationRanges = null;
 		if (normalize)
 		{
 			System.out.println("Using normalized data\n");
 			normalizationRanges = fullDataMatrix.normalize();
 		}
+		Preprocessor preprocessor = null;
+		if (preprocessing != null)
+		{
+			System.out.println("Using one-hot encoded, imputed and " + preprocessing + " scaled features\n");
+			preprocessor = new Preprocessor(true, true, preprocessing, 1);
+			preprocessor.fit(fullDataMatrix);
+			fullDataMatrix = preprocessor.transform(fullDataMatrix);
+		}
 
 		// Print some stats
 		System.out.println();
@@ -71,14 +225,30 @@ public class MLSystemManager {
 		System.out.println("Random seed: " + seed);
 		System.out.println("Learning algorithm: " + learnerName);
 		System.out.println("Evaluation method: " + evalMethod);
+		if (!learnerOptions.isEmpty())
+			System.out.println("Learner options: " + learnerOptions);
 		System.out.println();
 
 		if(learnerName.equals("kmeans") || learnerName.equals("hac")) {
 			// Create the unsupervised learning model
 			if(learnerName.equals("kmeans")) {
-				// new KMeansClusterer(fullDataMatrix);
+				KMeansClusterer clusterer = new KMeansClusterer(rand,
+						Integer.parseInt(getOption("k", "5")),
+						Integer.parseInt(getOption("maxIterations", "100")));
+				double startTime = System.currentTimeMillis();
+				clusterer.cluster(fullDataMatrix);
+				double elapsedTime = System.currentTimeMillis() - startTime;
+				System.out.println("Time to cluster (in seconds): " + elapsedTime / 1000.0);
+				clusterer.printClusters(fullDataMatrix);
 			} else if (learnerName.equals("hac")){
-				// new HierarchicalAgglomerativeClusterer(fullDataMatrix, rand);
+				HierarchicalAgglomerativeClusterer clusterer = new HierarchicalAgglomerativeClusterer(
+						getOption("linkage", "single"),
+						Integer.parseInt(getOption("k", "5")));
+				double startTime = System.currentTimeMillis();
+				clusterer.cluster(fullDataMatrix);
+				double elapsedTime = System.currentTimeMillis() - startTime;
+				System.out.println("Time to cluster (in seconds): " + elapsedTime / 1000.0);
+				clusterer.printClusters();
 			}
 		} else {
 			// Load the supervised learning model
@@ -94,8 +264,10 @@ public class MLSystemManager {
 					supervisedLearner.train(featuresOnlyDataMatrix, labelsOnlyDataMatrix);
 					double elapsedTime = System.currentTimeMillis() - startTime;
 					System.out.println("Time to train (in seconds): " + elapsedTime / 1000.0);
+					printTrainingStatistics(supervisedLearner, labelsOnlyDataMatrix);
 					double predictiveAccuracy = supervisedLearner.measurePredictiveAccuracy(featuresOnlyDataMatrix, labelsOnlyDataMatrix, confusionMatrix);
 					System.out.println("Training set accuracy: " + predictiveAccuracy);
+					writePredictions(supervisedLearner, featuresOnlyDataMatrix, labelsOnlyDataMatrix, predictionsFile);
 					if (printConfusionMatrix) {
 						System.out.println("\nConfusion matrix: (Row=target value, Col=predicted value)");
 						confusionMatrix.print();
@@ -105,10 +277,13 @@ public class MLSystemManager {
 				}
 				case "static": {
 					DataMatrix testSetDataMatrix = new DataMatrix();
-					testSetDataMatrix.loadArff(evalParameter);
+					load(testSetDataMatrix, evalParameter);
 					if (normalize) {
 						testSetDataMatrix.normalize(normalizationRanges);
 					}
+					if (preprocessor != null) {
+						testSetDataMatrix = preprocessor.transform(testSetDataMatrix);
+					}
 
 					System.out.println("Calculating accuracy on separate test set...");
 					System.out.println("Test set name: " + evalParameter);
@@ -119,6 +294,7 @@ public class MLSystemManager {
 					supervisedLearner.train(featuresOnlyDataMatrix, labelsOnlyDataMatrix);
 					double elapsedTime = System.currentTimeMillis() - startTime;
 					System.out.println("Time to train (in seconds): " + elapsedTime / 1000.0);
+					printTrainingStatistics(supervisedLearner, labelsOnlyDataMatrix);
 					double predictiveAccuracyOnTrainingDataset = supervisedLearner.measurePredictiveAccuracy(featuresOnlyDataMatrix, labelsOnlyDataMatrix, null);
 					System.out.println("Training set accuracy: " + predictiveAccuracyOnTrainingDataset);
 					DataMatrix testSetFeaturesOnlyDataMatrix = new DataMatrix(testSetDataMatrix, 0, 0, testSetDataMatrix.getRowCount(), testSetDataMatrix.getColCount() - 1);
@@ -126,6 +302,7 @@ public class MLSystemManager {
 					DataMatrix confusionMatrix = new DataMatrix();
 					double predictiveAccuracyOnTestingDataset = supervisedLearner.measurePredictiveAccuracy(testSetFeaturesOnlyDataMatrix, testSetLabelsOnlyDataMatrix, confusionMatrix);
 					System.out.println("Test set accuracy: " + predictiveAccuracyOnTestingDataset);
+					writePredictions(supervisedLearner, testSetFeaturesOnlyDataMatrix, testSetLabelsOnlyDataMatrix, predictionsFile);
 					if (printConfusionMatrix) {
 						System.out.println("\nConfusion matrix: (Row=target value, Col=predicted value)");
 						confusionMatrix.print();
@@ -151,11 +328,13 @@ public class MLSystemManager {
 					supervisedLearner.train(trainingSetFeaturesOnlyDataMatrix, trainingSetLabelsOnlyDataMatrix);
 					double elapsedTime = System.currentTimeMillis() - startTime;
 					System.out.println("Time to train (in seconds): " + elapsedTime / 1000.0);
+					printTrainingStatistics(supervisedLearner, trainingSetLabelsOnlyDataMatrix);
 					double predictiveAccuracyOnTrainingDataset = supervisedLearner.measurePredictiveAccuracy(trainingSetFeaturesOnlyDataMatrix, trainingSetLabelsOnlyDataMatrix, null);
 					System.out.println("Training set accuracy: " + predictiveAccuracyOnTrainingDataset);
 					DataMatrix confusionMatrix = new DataMatrix();
 					double predictiveAccuracyOnTestDataset = supervisedLearner.measurePredictiveAccuracy(testSetFeaturesOnlyDataMatrix, testSetLabelsOnlyDataMatrix, confusionMatrix);
 					System.out.println("Test set accuracy: " + predictiveAccuracyOnTestDataset);
+					writePredictions(supervisedLearner, testSetFeaturesOnlyDataMatrix, testSetLabelsOnlyDataMatrix, predictionsFile);
 					if (printConfusionMatrix) {
 						System.out.println("\nConfusion matrix: (Row=target value, Col=predicted value)");
 						confusionMatrix.print();
@@ -170,31 +349,16 @@ public class MLSystemManager {
 						throw new Exception("Number of folds must be greater than 0");
 					}
 					System.out.println("Number of folds: " + foldCount);
-					int repetitions = 1;
-					double sumOfAccuracies = 0.0;
-					double elapsedTime = 0.0;
-					for (int j = 0; j < repetitions; j++) {
-						fullDataMatrix.shuffleRowOrder(rand);
-						for (int i = 0; i < foldCount; i++) {
-							int firstFoldInstanceIndex = i * fullDataMatrix.getRowCount() / foldCount;
-							int endFoldInstanceIndex = (i + 1) * fullDataMatrix.getRowCount() / foldCount;
-							DataMatrix trainingSetFeaturesOnlyDataMatrix = new DataMatrix(fullDataMatrix, 0, 0, firstFoldInstanceIndex, fullDataMatrix.getColCount() - 1);
-							DataMatrix trainingSetLabelsOnlyDataMatrix = new DataMatrix(fullDataMatrix, 0, fullDataMatrix.getColCount() - 1, firstFoldInstanceIndex, 1);
-							DataMatrix testSetFeaturesOnlyDataMatrix = new DataMatrix(fullDataMatrix, firstFoldInstanceIndex, 0, endFoldInstanceIndex - firstFoldInstanceIndex, fullDataMatrix.getColCount() - 1);
-							DataMatrix testSetLabelsOnlyDataMatrix = new DataMatrix(fullDataMatrix, firstFoldInstanceIndex, fullDataMatrix.getColCount() - 1, endFoldInstanceIndex - firstFoldInstanceIndex, 1);
-							trainingSetFeaturesOnlyDataMatrix.add(fullDataMatrix, endFoldInstanceIndex, 0, fullDataMatrix.getRowCount() - endFoldInstanceIndex);
-							trainingSetLabelsOnlyDataMatrix.add(fullDataMatrix, endFoldInstanceIndex, fullDataMatrix.getColCount() - 1, fullDataMatrix.getRowCount() - endFoldInstanceIndex);
-							double startTime = System.currentTimeMillis();
-							supervisedLearner.train(trainingSetFeaturesOnlyDataMatrix, trainingSetLabelsOnlyDataMatrix);
-							elapsedTime += System.currentTimeMillis() - startTime;
-							double predictiveAccuracyOnTestSetForFold = supervisedLearner.measurePredictiveAccuracy(testSetFeaturesOnlyDataMatrix, testSetLabelsOnlyDataMatrix, null);
-							sumOfAccuracies += predictiveAccuracyOnTestSetForFold;
-							System.out.println("Rep=" + j + ", Fold=" + i + ", Accuracy=" + predictiveAccuracyOnTestSetForFold);
-						}
+					FoldCache foldCache = null;
+					if (cacheDirectory != null) {
+						foldCache = new FoldCache(cacheDirectory, cacheMegabytes << 20);
+						System.out.println("Fold cache: " + cacheDirectory + " (" + cacheMegabytes + " MB)");
 					}
-					elapsedTime /= (repetitions * foldCount);
-					System.out.println("Average time to train (in seconds): " + elapsedTime / 1000.0);
-					System.out.println("Mean accuracy=" + (sumOfAccuracies / (repetitions * foldCount)));
+					double sumOfAccuracies = 0.0;
+					double[] accuracies = crossValidate(fullDataMatrix, learnerName, seed, rand, foldCount, foldCache);
+					for (double accuracy : accuracies)
+						sumOfAccuracies += accuracy;
+					System.out.println("Mean accuracy=" + (sumOfAccuracies / accuracies.length));
 					break;
 				}
 			}
@@ -212,7 +376,12 @@ public class MLSystemManager {
 		String evalExtra;
 		boolean verbose;
 		boolean normalize;
+		String preprocessing;
 		long seed;
+		String cacheDirectory;
+		long cacheMegabytes = 1024;
+		String predictionsFile;
+		Map<String, String> learnerOptions = new TreeMap<String, String>();
 
 		//You can add more options for specific learning models if you wish
 		public ArgParser(String[] argv) {
@@ -225,12 +394,39 @@ public class MLSystemManager {
 						case "-n":
 							normalize = true;
 							break;
+						case "-p":
+							if (++i == argv.length) {
+								throw new IndexOutOfBoundsException("[ArgParser] A scaling for preprocessing was not provided");
+							}
+							preprocessing = argv[i];
+							break;
 						case "-s":
 							if (++i == argv.length) {
 								throw new IndexOutOfBoundsException("[ArgParser] A seed value was not provided");
 							}
 							seed = Long.parseLong(argv[i]);
 							break;
+						case "-c":
+							if (++i == argv.length) {
+								throw new IndexOutOfBoundsException("[ArgParser] A cache directory was not provided");
+							}
+							cacheDirectory = argv[i];
+							if (i + 1 < argv.length && argv[i + 1].matches("[0-9]+")) {
+								cacheMegabytes = Long.parseLong(argv[++i]);
+							}
+							break;
+						case "-w":
+							if (++i == argv.length) {
+								throw new IndexOutOfBoundsException("[ArgParser] A predictions file was not provided");
+							}
+							predictionsFile = argv[i];
+							break;
+						case "-o":
+							if (++i == argv.length || argv[i].indexOf('=') <= 0) {
+								throw new IllegalArgumentException("[ArgParser] A learner option must be given as name=value");
+							}
+							learnerOptions.put(argv[i].substring(0, argv[i].indexOf('=')), argv[i].substring(argv[i].indexOf('=') + 1));
+							break;
 						case "-a":
 							if (++i == argv.length) {
 								throw new IndexOutOfBoundsException("[ArgParser] ARFF_File was not provided");
@@ -278,7 +474,15 @@ public class MLSystemManager {
 				System.out.println("Options:");
 				System.out.println("-V Print the confusion matrix and learner accuracy on individual class values");
 				System.out.println("-N Normalize the data");
-				System.out.println("-S [number] Provide a seed value for deterministic results (0 is ignored)\n");
+				System.out.println("-P [zscore|minmax|none] One-hot encode nominal features, impute missing values and scale continuous features");
+				System.out.println("-S [number] Provide a seed value for deterministic results (0 is ignored)");
+				System.out.println("-C [directory] {[megabytes]} Cache the results and models of cross-validation folds (1024 MB by default)");
+				System.out.println("-W [file] Write the evaluated rows with their predictions to a .arff, .csv or .bin file (not for cross)");
+				System.out.println("-O [name=value] Set an option of the learning algorithm (may be repeated)");
+				System.out.println("   knn: k=3 weighted=false index=auto|kdtree|balltree|hnsw M=16 efConstruction=200 efSearch=50");
+				System.out.println("        reduction=none|enn|cnn|enn+cnn");
+				System.out.println("   kmeans: k=5 maxIterations=100");
+				System.out.println("   hac: k=5 linkage=single|complete|average|ward\n");
 				System.out.println("Possible evaluation methods are:");
 				System.out.println("MLSystemManager -L [learningAlgorithm] -A [ARFF_File] -E training");
 				System.out.println("MLSystemManager -L [learningAlgorithm] -A [ARFF_File] -E static [testARFF_File]");
@@ -295,7 +499,12 @@ public class MLSystemManager {
 		public String getEvalParameter() { return evalExtra; }
 		public boolean getVerbose() { return verbose; } 
 		public boolean getNormalize() { return normalize; }
+		public String getPreprocessing() { return preprocessing; }
+		public String getCacheDirectory() { return cacheDirectory; }
+		public long getCacheMegabytes() { return cacheMegabytes; }
+		public String getPredictionsFile() { return predictionsFile; }
 		public long getSeed() { return seed; }
+		public Map<String, String> getLearnerOptions() { return learnerOptions; }
 	}
 
 	public static void main(String[] args) throws Exception
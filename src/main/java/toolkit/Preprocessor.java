@@ -0,0 +1,251 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+package toolkit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A preprocessing stage that is fitted to one matrix (usually the training set) and then
+ * applied to any matrix with the same attributes (the training and test sets), like
+ * normalize() and normalize(double[][]) but with more choices:
+ *
+ * - nominal attributes can be one-hot encoded, becoming one continuous 0/1 column per value
+ * - missing values can be imputed, with the mean of a continuous attribute or the most
+ *   common value of a nominal one
+ * - continuous attributes can be scaled by "zscore" (to mean 0 and standard deviation 1)
+ *   or "minmax" (to [0, 1]), or left as they are ("none")
+ *
+ * fit reads the matrix once, gathering every statistic in the same pass. transform then
+ * builds each output row in a single pass over the input row, doing all three steps at
+ * once, and can emit either a DataMatrix or a SparseMatrix holding only the non-zero cells
+ * (which pays off when one-hot encoding produces many columns). The last labelColCount
+ * columns are labels, and are copied through unchanged.
+ */
+public class Preprocessor {
+
+	boolean oneHot;
+	boolean impute;
+	String scaling; // "none", "zscore" or "minmax"
+	int labelColCount;
+
+	// Fitted state, by input column
+	int inputColCount;
+	int[] valueCount; // 0 for a continuous column
+	int[] outputCol; // the first output column of each input column
+	double[] fill; // the value that replaces MISSING (MISSING if none)
+	double[] shift; // a continuous value v becomes (v - shift) * factor
+	double[] factor;
+	int outputColCount;
+	DataMatrix fittedMatrix; // for the attribute names
+
+	/**
+	 *
+	 * @param oneHot whether to replace each nominal attribute with one 0/1 column per value
+	 * @param impute whether to replace missing values with the column's mean or mode
+	 * @param scaling "zscore", "minmax" or "none"
+	 * @param labelColCount the number of columns at the end of each matrix to leave as they are
+	 */
+	public Preprocessor(boolean oneHot, boolean impute, String scaling, int labelColCount) throws Exception {
+		if(!scaling.equals("none") && !scaling.equals("zscore") && !scaling.equals("minmax"))
+			throw new Exception("Unrecognized scaling: " + scaling);
+		this.oneHot = oneHot;
+		this.impute = impute;
+		this.scaling = scaling;
+		this.labelColCount = labelColCount;
+	}
+
+	/**
+	 *
+	 * @param dataMatrix the matrix from which to compute the statistics
+	 * @throws Exception
+	 *
+	 * Computes the means, standard deviations, ranges and value counts of the attributes
+	 * in one pass over each column (the variance by Welford's method). Only columns that
+	 * have missing values test their cells against the matrix's bitmap of present values.
+	 */
+	public void fit(DataMatrix dataMatrix) throws Exception {
+		inputColCount = dataMatrix.getColCount() - labelColCount;
+		if(inputColCount < 0)
+			throw new Exception("Expected at least " + labelColCount + " columns");
+		valueCount = new int[inputColCount];
+		for(int col = 0; col < inputColCount; col++)
+			valueCount[col] = dataMatrix.getValueCountForAttributeAtColumn(col);
+
+		long[] count = new long[inputColCount];
+		double[] mean = new double[inputColCount];
+		double[] squaredDeviations = new double[inputColCount];
+		double[] min = new double[inputColCount];
+		double[] max = new double[inputColCount];
+		int[][] valueCounts = new int[inputColCount][];
+		for(int col = 0; col < inputColCount; col++)
+			valueCounts[col] = new int[valueCount[col]];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		for(int col = 0; col < inputColCount; col++) {
+			boolean hasMissingValues = dataMatrix.hasMissingValues(col);
+			for(int row = 0; row < dataMatrix.getRowCount(); row++) {
+				if(hasMissingValues && dataMatrix.isMissing(row, col))
+					continue;
+				double v = dataMatrix.getValueAt(row, col);
+				if(valueCount[col] > 0) {
+					valueCounts[col][(int) v]++;
+				} else {
+					double delta = v - mean[col];
+					mean[col] += delta / ++count[col];
+					squaredDeviations[col] += delta * (v - mean[col]);
+					min[col] = Math.min(min[col], v);
+					max[col] = Math.max(max[col], v);
+				}
+			}
+		}
+
+		outputCol = new int[inputColCount];
+		fill = new double[inputColCount];
+		shift = new double[inputColCount];
+		factor = new double[inputColCount];
+		outputColCount = 0;
+		for(int col = 0; col < inputColCount; col++) {
+			outputCol[col] = outputColCount;
+			outputColCount += (valueCount[col] > 0 && oneHot) ? valueCount[col] : 1;
+			fill[col] = DataMatrix.MISSING;
+			factor[col] = 1;
+			if(valueCount[col] > 0) {
+				int mode = -1;
+				for(int value = 0; value < valueCount[col]; value++) {
+					if(valueCounts[col][value] > 0 && (mode < 0 || valueCounts[col][value] > valueCounts[col][mode]))
+						mode = value;
+				}
+				if(impute && mode >= 0)
+					fill[col] = mode;
+			} else if(count[col] > 0) {
+				if(impute)
+					fill[col] = mean[col];
+				double deviation = Math.sqrt(squaredDeviations[col] / count[col]);
+				if(scaling.equals("zscore")) {
+					shift[col] = mean[col];
+					if(deviation > 0)
+						factor[col] = 1 / deviation;
+				} else if(scaling.equals("minmax")) {
+					shift[col] = min[col];
+					if(max[col] > min[col])
+						factor[col] = 1 / (max[col] - min[col]);
+				}
+			}
+		}
+		outputColCount += labelColCount;
+		fittedMatrix = new DataMatrix(dataMatrix, 0, 0, 0, dataMatrix.getColCount());
+	}
+
+	// Returns the number of columns in a transformed matrix
+	public int getOutputColCount() { return outputColCount; }
+
+	/**
+	 *
+	 * @param dataMatrix a matrix with the same attributes as the one that was fitted
+	 * @return the transformed matrix
+	 * @throws Exception
+	 *
+	 * Rows are transformed in parallel. A one-hot encoded column named "color" with the
+	 * value "red" is named "color=red".
+	 */
+	public DataMatrix transform(DataMatrix dataMatrix) throws Exception {
+		checkFitted(dataMatrix);
+		DataMatrix output = new DataMatrix();
+		output.setSize(0, outputColCount);
+		for(int col = 0; col < inputColCount; col++) {
+			String name = fittedMatrix.getAttributeNameAtColumn(col);
+			if(valueCount[col] > 0 && oneHot) {
+				for(int value = 0; value < valueCount[col]; value++)
+					output.setAttributeName(outputCol[col] + value, name + "=" + fittedMatrix.getAttributeValueName(col, value));
+			} else {
+				output.setAttributeName(outputCol[col], name);
+				output.valueIndexByAttributeColAndValueName.set(outputCol[col], fittedMatrix.valueIndexByAttributeColAndValueName.get(col));
+				output.valueNameByAttributeColAndValueIndex.set(outputCol[col], fittedMatrix.valueNameByAttributeColAndValueIndex.get(col));
+			}
+		}
+		for(int label = 0; label < labelColCount; label++) {
+			int outCol = outputColCount - labelColCount + label;
+			output.setAttributeName(outCol, fittedMatrix.getAttributeNameAtColumn(inputColCount + label));
+			output.valueIndexByAttributeColAndValueName.set(outCol, fittedMatrix.valueIndexByAttributeColAndValueName.get(inputColCount + label));
+			output.valueNameByAttributeColAndValueIndex.set(outCol, fittedMatrix.valueNameByAttributeColAndValueIndex.get(inputColCount + label));
+		}
+
+		double[][] rows = new double[dataMatrix.getRowCount()][];
+		IntStream.range(0, rows.length).parallel().forEach(row -> {
+			double[] out = new double[outputColCount];
+			transformRow(dataMatrix.getRow(row), out);
+			rows[row] = out;
+		});
+		output.matrixData = new ArrayList<double[]>(Arrays.asList(rows));
+		return output;
+	}
+
+	/**
+	 *
+	 * @param dataMatrix a matrix with the same attributes as the one that was fitted
+	 * @return the transformed matrix, without its zero cells
+	 * @throws Exception
+	 *
+	 * Each row is built in a reused dense buffer and its non-zero cells appended to the
+	 * output. A missing value that is not imputed is stored as MISSING.
+	 */
+	public SparseMatrix transformSparse(DataMatrix dataMatrix) throws Exception {
+		checkFitted(dataMatrix);
+		int rowCount = dataMatrix.getRowCount();
+		int[] rowStart = new int[rowCount + 1];
+		int[] colIndices = new int[Math.max(16, rowCount)];
+		double[] values = new double[colIndices.length];
+		double[] buffer = new double[outputColCount];
+		int nonZeroCount = 0;
+		for(int row = 0; row < rowCount; row++) {
+			transformRow(dataMatrix.getRow(row), buffer);
+			if(nonZeroCount + outputColCount > colIndices.length) {
+				int capacity = Math.max(2 * colIndices.length, nonZeroCount + outputColCount);
+				colIndices = Arrays.copyOf(colIndices, capacity);
+				values = Arrays.copyOf(values, capacity);
+			}
+			for(int col = 0; col < outputColCount; col++) {
+				if(buffer[col] != 0) {
+					colIndices[nonZeroCount] = col;
+					values[nonZeroCount++] = buffer[col];
+				}
+			}
+			rowStart[row + 1] = nonZeroCount;
+		}
+		return new SparseMatrix(outputColCount, rowStart, Arrays.copyOf(colIndices, nonZeroCount), Arrays.copyOf(values, nonZeroCount));
+	}
+
+	// Writes the transformed row into out, which must hold outputColCount values
+	void transformRow(double[] in, double[] out) {
+		for(int col = 0; col < inputColCount; col++) {
+			double v = in[col] == DataMatrix.MISSING ? fill[col] : in[col];
+			int o = outputCol[col];
+			if(valueCount[col] == 0)
+				out[o] = v == DataMatrix.MISSING ? v : (v - shift[col]) * factor[col];
+			else if(!oneHot)
+				out[o] = v;
+			else {
+				// A missing value that is not imputed sets none of the value columns
+				Arrays.fill(out, o, o + valueCount[col], 0);
+				if(v != DataMatrix.MISSING)
+					out[o + (int) v] = 1;
+			}
+		}
+		System.arraycopy(in, inputColCount, out, outputColCount - labelColCount, labelColCount);
+	}
+
+	void checkFitted(DataMatrix dataMatrix) throws Exception {
+		if(fittedMatrix == null)
+			throw new Exception("The preprocessor must be fitted before it can transform");
+		if(dataMatrix.getColCount() != inputColCount + labelColCount)
+			throw new Exception("Expected " + (inputColCount + labelColCount) + " columns");
+		for(int col = 0; col < inputColCount; col++) {
+			if(dataMatrix.getValueCountForAttributeAtColumn(col) != valueCount[col])
+				throw new Exception("incompatible relations");
+		}
+	}
+}
@@ -0,0 +1,61 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+package toolkit;
+
+import java.util.Arrays;
+
+/**
+ * A read-only matrix of continuous values that stores only its non-zero cells, in
+ * compressed sparse row form: the cells of row r are at positions rowStart[r] up to
+ * rowStart[r + 1] of colIndices and values, in increasing column order.
+ */
+public class SparseMatrix {
+	final int colCount;
+	final int[] rowStart;
+	final int[] colIndices;
+	final double[] values;
+
+	SparseMatrix(int colCount, int[] rowStart, int[] colIndices, double[] values) {
+		this.colCount = colCount;
+		this.rowStart = rowStart;
+		this.colIndices = colIndices;
+		this.values = values;
+	}
+
+	// Returns the number of rows in the matrix
+	public int getRowCount() { return rowStart.length - 1; }
+
+	// Returns the number of columns in the matrix
+	public int getColCount() { return colCount; }
+
+	// Returns the number of stored (non-zero) cells
+	public int getNonZeroCount() { return rowStart[rowStart.length - 1]; }
+
+	// Returns the position of the first stored cell of the specified row
+	public int getRowStart(int row) { return rowStart[row]; }
+
+	// Returns the position after the last stored cell of the specified row
+	public int getRowEnd(int row) { return rowStart[row + 1]; }
+
+	// Returns the column of the stored cell at the specified position
+	public int getColIndexAt(int position) { return colIndices[position]; }
+
+	// Returns the value of the stored cell at the specified position
+	public double getValueAtPosition(int position) { return values[position]; }
+
+	// Returns the value in the specified cell (0 if it is not stored)
+	public double getValueAt(int row, int col) {
+		int position = Arrays.binarySearch(colIndices, rowStart[row], rowStart[row + 1], col);
+		return position < 0 ? 0 : values[position];
+	}
+
+	// Returns the specified row as a dense array
+	public double[] getDenseRow(int row) {
+		double[] dense = new double[colCount];
+		for(int position = rowStart[row]; position < rowStart[row + 1]; position++)
+			dense[colIndices[position]] = values[position];
+		return dense;
+	}
+}
@@ -4,7 +4,16 @@
 // ----------------------------------------------------------------
 package toolkit;
 
-public abstract class SupervisedLearner {
+import java.io.Serializable;
+import java.util.Arrays;
+
+// Learners are Serializable so that a trained model can be cached with its fold's result (see
+// FoldCache). A learner holding state that cannot be serialized is cached without its model.
+public abstract class SupervisedLearner implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	// Number of instances handed to predictBatchLabelsFromFeatures at a time when measuring accuracy
+	static final int PREDICTION_BATCH_SIZE = 4096;
 
 	/**
 	 *
@@ -17,6 +26,36 @@ public abstract class SupervisedLearner {
 	 */
 	public abstract void train(DataMatrix featuresOnlyDataMatrix, DataMatrix labelsOnlyDataMatrix) throws Exception;
 
+	/**
+	 *
+	 * @param featuresOnlyDataMatrix a DataMatrix of values for the training algorithm to operate on
+	 * @param labelsOnlyDataMatrix a DataMatrix of labels corresponding to each row of features
+	 * @param rowIndices the rows of the matrices to train on
+	 * @param rowWeights the weight of each entry of rowIndices
+	 * @throws Exception
+	 *
+	 * Trains on a weighted subset of the rows, such as a bootstrap sample, without copying
+	 * the data. By default each listed row is repeated round(weight) times in matrices that
+	 * share their rows with the originals. Learners that support fractional weights, or
+	 * that can use the indices directly, should override it.
+	 */
+	public void train(DataMatrix featuresOnlyDataMatrix, DataMatrix labelsOnlyDataMatrix, int[] rowIndices, double[] rowWeights) throws Exception
+	{
+		if(rowIndices.length != rowWeights.length)
+			throw new Exception("Expected one weight per row index");
+		int repeatedRowCount = 0;
+		for(int i = 0; i < rowWeights.length; i++)
+			repeatedRowCount += (int) Math.max(0, Math.round(rowWeights[i]));
+		int[] repeatedRowIndices = new int[repeatedRowCount];
+		int next = 0;
+		for(int i = 0; i < rowIndices.length; i++)
+		{
+			for(long r = Math.round(rowWeights[i]); r > 0; r--)
+				repeatedRowIndices[next++] = rowIndices[i];
+		}
+		train(new DataMatrix(featuresOnlyDataMatrix, repeatedRowIndices), new DataMatrix(labelsOnlyDataMatrix, repeatedRowIndices));
+	}
+
 	/**
 	 * 
 	 * @param featureVector a vector of features from which to predict a label or labels
@@ -32,6 +71,22 @@ public abstract class SupervisedLearner {
 	 */
 	public abstract void predictInstanceLabelsFromFeatures(double[] featureVector, double[] arrayInWhichToPutLabels) throws Exception;
 
+	/**
+	 *
+	 * @param featureVectors the feature vectors of several instances
+	 * @param arrayInWhichToPutLabels one array per instance in which to put its label(s)
+	 * @throws Exception
+	 *
+	 * Predicts the labels of many instances at once. By default this simply calls
+	 * predictInstanceLabelsFromFeatures for each instance. Learners that can share work
+	 * across instances (or score them in parallel) should override it.
+	 */
+	public void predictBatchLabelsFromFeatures(double[][] featureVectors, double[][] arrayInWhichToPutLabels) throws Exception
+	{
+		for(int i = 0; i < featureVectors.length; i++)
+			predictInstanceLabelsFromFeatures(featureVectors[i], arrayInWhichToPutLabels[i]);
+	}
+
 	/**
 	 *
 	 * @param featuresOnlyDataMatrix a DataMatrix of values for the model to predict from
@@ -54,21 +109,28 @@ public abstract class SupervisedLearner {
 		if(featuresOnlyDataMatrix.getRowCount() == 0)
 			throw new Exception("Expected at least one row");
 
+		// Predictions are made a batch at a time
+		int rowCount = featuresOnlyDataMatrix.getRowCount();
+		int batchSize = Math.min(rowCount, PREDICTION_BATCH_SIZE);
+		double[][] featuresForBatch = new double[batchSize][];
+		double[][] predictedLabelsForBatch = new double[batchSize][1];
+
 		int labelValues = labelsOnlyDataMatrix.getValueCountForAttributeAtColumn(0);
 		if(labelValues == 0)
 		{
 			// The label is continuous, so measure root mean squared error
 			double sse = 0.0;
-			double[] predictedLabels = new double[1];
-			for(int i = 0; i < featuresOnlyDataMatrix.getRowCount(); i++)
+			for(int batchStart = 0; batchStart < rowCount; batchStart += batchSize)
 			{
-				double[] featuresForInstance = featuresOnlyDataMatrix.getRow(i);
-				double[] target = labelsOnlyDataMatrix.getRow(i);
-				predictInstanceLabelsFromFeatures(featuresForInstance, predictedLabels);
-				double delta = target[0] - predictedLabels[0];
-				sse += (delta * delta);
+				int count = predictBatch(featuresOnlyDataMatrix, batchStart, featuresForBatch, predictedLabelsForBatch);
+				for(int j = 0; j < count; j++)
+				{
+					double[] target = labelsOnlyDataMatrix.getRow(batchStart + j);
+					double delta = target[0] - predictedLabelsForBatch[j][0];
+					sse += (delta * delta);
+				}
 			}
-			return Math.sqrt(sse / featuresOnlyDataMatrix.getRowCount());
+			return Math.sqrt(sse / rowCount);
 		}
 		else
 		{
@@ -80,21 +142,40 @@ public abstract class SupervisedLearner {
 					confusion.setAttributeName(i, labelsOnlyDataMatrix.getAttributeValueName(0, i));
 			}
 			int correctCount = 0;
-			for(int i = 0; i < featuresOnlyDataMatrix.getRowCount(); i++)
+			for(int batchStart = 0; batchStart < rowCount; batchStart += batchSize)
 			{
-				double[] featuresForInstance = featuresOnlyDataMatrix.getRow(i);
-				int target = (int) labelsOnlyDataMatrix.getValueAt(i, 0);
-				if(target >= labelValues)
-					throw new Exception("The label is out of range");
-				double[] predictedLabels = new double[1]; 
-				predictInstanceLabelsFromFeatures(featuresForInstance, predictedLabels);
-				int prediction = (int) predictedLabels[0];
-				if(confusion != null)
-					confusion.setValue(target, prediction, confusion.getValueAt(target, prediction) + 1);
-				if(prediction == target)
-					correctCount++;
+				for(int j = batchStart; j < Math.min(batchStart + batchSize, rowCount); j++)
+				{
+					if((int) labelsOnlyDataMatrix.getValueAt(j, 0) >= labelValues)
+						throw new Exception("The label is out of range");
+				}
+				int count = predictBatch(featuresOnlyDataMatrix, batchStart, featuresForBatch, predictedLabelsForBatch);
+				for(int j = 0; j < count; j++)
+				{
+					int target = (int) labelsOnlyDataMatrix.getValueAt(batchStart + j, 0);
+					int prediction = (int) predictedLabelsForBatch[j][0];
+					if(confusion != null)
+						confusion.setValue(target, prediction, confusion.getValueAt(target, prediction) + 1);
+					if(prediction == target)
+						correctCount++;
+				}
 			}
-			return (double)correctCount / featuresOnlyDataMatrix.getRowCount();
+			return (double)correctCount / rowCount;
+		}
+	}
+
+	// Predicts the rows starting at batchStart (as many as fit in the batch arrays) and returns how many were predicted
+	int predictBatch(DataMatrix featuresOnlyDataMatrix, int batchStart, double[][] featuresForBatch, double[][] predictedLabelsForBatch) throws Exception
+	{
+		int count = Math.min(featuresForBatch.length, featuresOnlyDataMatrix.getRowCount() - batchStart);
+		if(count < featuresForBatch.length)
+		{
+			featuresForBatch = Arrays.copyOf(featuresForBatch, count);
+			predictedLabelsForBatch = Arrays.copyOf(predictedLabelsForBatch, count);
 		}
+		for(int j = 0; j < count; j++)
+			featuresForBatch[j] = featuresOnlyDataMatrix.getRow(batchStart + j);
+		predictBatchLabelsFromFeatures(featuresForBatch, predictedLabelsForBatch);
+		return count;
 	}
 }
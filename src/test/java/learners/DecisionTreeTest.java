@@ -0,0 +1,143 @@
+package learners;
+
+import org.junit.*;
+import toolkit.DataMatrix;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class DecisionTreeTest {
+    private DataMatrix features;
+    private DataMatrix labels;
+
+    @Before
+    public void setUp() throws Exception {
+        DataMatrix data = new DataMatrix();
+        data.loadArff("datasets/iris.arff");
+        features = new DataMatrix(data, 0, 0, data.getRowCount(), data.getColCount() - 1);
+        labels = new DataMatrix(data, 0, data.getColCount() - 1, data.getRowCount(), 1);
+    }
+
+    @Test
+    public void fullyGrownTreeFitsTrainingSet() throws Exception {
+        DecisionTree tree = new DecisionTree();
+        tree.train(features, labels);
+        Assert.assertEquals(1.0, tree.measurePredictiveAccuracy(features, labels, null), 1e-12);
+    }
+
+    @Test
+    public void stumpSeparatesOneClass() throws Exception {
+        DecisionTree tree = new DecisionTree(1, 1, BinnedFeatures.MAX_BINS);
+        tree.train(features, labels);
+        Assert.assertEquals(100.0 / 150.0, tree.measurePredictiveAccuracy(features, labels, null), 1e-12);
+    }
+
+    @Test
+    public void missingFeatureValuesFollowLearnedDirection() throws Exception {
+        DecisionTree tree = new DecisionTree(1, 1, BinnedFeatures.MAX_BINS);
+        tree.train(features, labels);
+        double[] missing = new double[features.getColCount()];
+        Arrays.fill(missing, DataMatrix.MISSING);
+        double[] prediction = new double[1];
+        tree.predictInstanceLabelsFromFeatures(missing, prediction);
+        Assert.assertTrue(prediction[0] >= 0 && prediction[0] < labels.getValueCountForAttributeAtColumn(0));
+    }
+
+    private static DataMatrix[] split(DataMatrix data) {
+        return new DataMatrix[] {
+            new DataMatrix(data, 0, 0, data.getRowCount(), data.getColCount() - 1),
+            new DataMatrix(data, 0, data.getColCount() - 1, data.getRowCount(), 1)
+        };
+    }
+
+    // Continuous and nominal features with about 5% of the values missing, and enough rows
+    // that the tree grows its children and histograms in parallel
+    private static DataMatrix mixedData(int rowCount) throws Exception {
+        File file = File.createTempFile("mixed", ".arff");
+        file.deleteOnExit();
+        Random random = new Random(3);
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("@RELATION mixed");
+            for (int col = 0; col < 4; col++)
+                out.println("@ATTRIBUTE x" + col + " REAL");
+            out.println("@ATTRIBUTE color {red, green, blue}");
+            out.println("@ATTRIBUTE class {yes, no}");
+            out.println("@DATA");
+            String[] colors = { "red", "green", "blue" };
+            for (int row = 0; row < rowCount; row++) {
+                StringBuilder line = new StringBuilder();
+                double sum = 0;
+                for (int col = 0; col < 4; col++) {
+                    double x = random.nextGaussian();
+                    sum += x * (col + 1);
+                    line.append(random.nextDouble() < 0.05 ? "?" : Double.toString(x)).append(", ");
+                }
+                int color = random.nextInt(3);
+                line.append(random.nextDouble() < 0.05 ? "?" : colors[color]).append(", ");
+                line.append(sum + color + random.nextGaussian() > 1 ? "yes" : "no");
+                out.println(line);
+            }
+        }
+        DataMatrix data = new DataMatrix();
+        data.loadArff(file.getPath());
+        return data;
+    }
+
+    private static void assertBatchMatchesSingleRows(DecisionTree tree, DataMatrix features) throws Exception {
+        double[][] featureVectors = new double[features.getRowCount()][];
+        double[][] batch = new double[features.getRowCount()][1];
+        for (int row = 0; row < featureVectors.length; row++)
+            featureVectors[row] = features.getRow(row);
+        tree.predictBatchLabelsFromFeatures(featureVectors, batch);
+        double[] single = new double[1];
+        for (int row = 0; row < featureVectors.length; row++) {
+            tree.predictInstanceLabelsFromFeatures(featureVectors[row], single);
+            Assert.assertEquals(single[0], batch[row][0], 0);
+        }
+    }
+
+    @Test
+    public void batchPredictionsMatchSingleRowPredictions() throws Exception {
+        // Continuous features (iris), nominal features with missing values (vote) and both mixed
+        DataMatrix vote = new DataMatrix();
+        vote.loadArff("datasets/vote.arff");
+        for (DataMatrix data : new DataMatrix[] { null, vote, mixedData(5000) }) {
+            DataMatrix[] parts = data == null ? new DataMatrix[] { features, labels } : split(data);
+            DecisionTree tree = new DecisionTree();
+            tree.train(parts[0], parts[1]);
+            assertBatchMatchesSingleRows(tree, parts[0]);
+        }
+    }
+
+    private static DecisionTree growIn(int parallelism, DataMatrix[] parts, int featuresPerSplit) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            DecisionTree tree = new DecisionTree(Integer.MAX_VALUE, 1, BinnedFeatures.MAX_BINS, featuresPerSplit, 7);
+            pool.submit(() -> {
+                tree.train(parts[0], parts[1]);
+                return null;
+            }).get();
+            return tree;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void treeDoesNotDependOnParallelism() throws Exception {
+        DataMatrix[] parts = split(mixedData(20000));
+        for (int featuresPerSplit : new int[] { 0, 2 }) {
+            DecisionTree sequential = growIn(1, parts, featuresPerSplit);
+            DecisionTree parallel = growIn(4, parts, featuresPerSplit);
+            Assert.assertTrue(sequential.splitFeature.length > 100);
+            Assert.assertArrayEquals(sequential.splitFeature, parallel.splitFeature);
+            Assert.assertArrayEquals(sequential.leftChild, parallel.leftChild);
+            Assert.assertArrayEquals(sequential.splitThreshold, parallel.splitThreshold, 0);
+            Assert.assertArrayEquals(sequential.nodeValue, parallel.nodeValue, 0);
+            Assert.assertTrue(Arrays.equals(sequential.splitFlags, parallel.splitFlags));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package learners;
+
+import java.util.Arrays;
+
+import org.junit.*;
+import toolkit.DataMatrix;
+
+public class HierarchicalAgglomerativeClustererTest {
+    private DataMatrix iris;
+
+    @Before
+    public void setUp() throws Exception {
+        iris = new DataMatrix();
+        iris.loadArff("datasets/iris.arff");
+    }
+
+    // Merges the closest pair of clusters n - 1 times, updating a full matrix, and returns the heights in order
+    private static double[] naiveHeights(InstanceSpace space, String linkage) {
+        int n = space.rowCount;
+        boolean ward = linkage.equals("ward");
+        double[][] d = new double[n][n];
+        int[] size = new int[n];
+        boolean[] active = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            size[i] = 1;
+            active[i] = true;
+            for (int j = 0; j < n; j++)
+                d[i][j] = ward ? space.squaredDistance(i, j) : Math.sqrt(space.squaredDistance(i, j));
+        }
+        double[] heights = new double[n - 1];
+        for (int merge = 0; merge < n - 1; merge++) {
+            int a = -1;
+            int b = -1;
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    if (active[i] && active[j] && (a < 0 || d[i][j] < d[a][b])) {
+                        a = i;
+                        b = j;
+                    }
+                }
+            }
+            heights[merge] = ward ? Math.sqrt(d[a][b]) : d[a][b];
+            for (int c = 0; c < n; c++) {
+                if (!active[c] || c == a || c == b)
+                    continue;
+                double updated;
+                switch (linkage) {
+                    case "single": updated = Math.min(d[a][c], d[b][c]); break;
+                    case "complete": updated = Math.max(d[a][c], d[b][c]); break;
+                    case "average": updated = (size[a] * d[a][c] + size[b] * d[b][c]) / (size[a] + size[b]); break;
+                    default: updated = ((size[a] + size[c]) * d[a][c] + (size[b] + size[c]) * d[b][c] - size[c] * d[a][b])
+                            / (size[a] + size[b] + size[c]);
+                }
+                d[a][c] = updated;
+                d[c][a] = updated;
+            }
+            size[a] += size[b];
+            active[b] = false;
+        }
+        Arrays.sort(heights);
+        return heights;
+    }
+
+    @Test
+    public void mergeHeightsMatchNaiveClustering() throws Exception {
+        for (String linkage : new String[] { "single", "complete", "average", "ward" }) {
+            HierarchicalAgglomerativeClusterer clusterer = new HierarchicalAgglomerativeClusterer(linkage, 3);
+            clusterer.cluster(iris);
+            Assert.assertArrayEquals(naiveHeights(clusterer.space, linkage), clusterer.getMergeHeights(), 1e-5);
+        }
+    }
+
+    @Test
+    public void cuttingGivesTheRequestedNumberOfClusters() throws Exception {
+        HierarchicalAgglomerativeClusterer clusterer = new HierarchicalAgglomerativeClusterer("average", 4);
+        clusterer.cluster(iris);
+        int[] sizes = new int[4];
+        for (int cluster : clusterer.getAssignments())
+            sizes[cluster]++;
+        for (int size : sizes)
+            Assert.assertTrue(size > 0);
+        for (int cluster : clusterer.cut(1))
+            Assert.assertEquals(0, cluster);
+    }
+}
@@ -0,0 +1,81 @@
+package learners;
+
+import org.junit.*;
+import toolkit.DataMatrix;
+
+public class InstanceBasedLearnerTest {
+    private DataMatrix features;
+    private DataMatrix labels;
+
+    @Before
+    public void setUp() throws Exception {
+        DataMatrix data = new DataMatrix();
+        data.loadArff("datasets/vote.arff");
+        features = new DataMatrix(data, 0, 0, data.getRowCount(), data.getColCount() - 1);
+        labels = new DataMatrix(data, 0, data.getColCount() - 1, data.getRowCount(), 1);
+    }
+
+    @Test
+    public void nearestNeighborOfATrainingRowIsItself() throws Exception {
+        DataMatrix iris = new DataMatrix();
+        iris.loadArff("datasets/iris.arff");
+        DataMatrix irisFeatures = new DataMatrix(iris, 0, 0, iris.getRowCount(), iris.getColCount() - 1);
+        DataMatrix irisLabels = new DataMatrix(iris, 0, iris.getColCount() - 1, iris.getRowCount(), 1);
+        InstanceBasedLearner learner = new InstanceBasedLearner(1, false, "kdtree");
+        learner.train(irisFeatures, irisLabels);
+        Assert.assertTrue(learner.measurePredictiveAccuracy(irisFeatures, irisLabels, null) > 0.99);
+    }
+
+    @Test
+    public void indexesAgreeWithEachOther() throws Exception {
+        InstanceBasedLearner kdTree = new InstanceBasedLearner(5, true, "kdtree");
+        InstanceBasedLearner ballTree = new InstanceBasedLearner(5, true, "balltree");
+        kdTree.train(features, labels);
+        ballTree.train(features, labels);
+        double[] fromKdTree = new double[1];
+        double[] fromBallTree = new double[1];
+        for (int row = 0; row < features.getRowCount(); row++) {
+            kdTree.predictInstanceLabelsFromFeatures(features.getRow(row), fromKdTree);
+            ballTree.predictInstanceLabelsFromFeatures(features.getRow(row), fromBallTree);
+            Assert.assertEquals(fromKdTree[0], fromBallTree[0], 0);
+        }
+    }
+
+    @Test
+    public void hnswRecallIsHigh() throws Exception {
+        DataMatrix iris = new DataMatrix();
+        iris.loadArff("datasets/iris.arff");
+        DataMatrix irisFeatures = new DataMatrix(iris, 0, 0, iris.getRowCount(), iris.getColCount() - 1);
+        DataMatrix irisLabels = new DataMatrix(iris, 0, iris.getColCount() - 1, iris.getRowCount(), 1);
+        InstanceBasedLearner learner = new InstanceBasedLearner(3, false, "hnsw", 8, 64, 32);
+        learner.train(irisFeatures, irisLabels);
+        Assert.assertTrue(learner.getRecall() > 0.9);
+    }
+
+    @Test
+    public void bruteForceBatchMatchesKdTree() throws Exception {
+        InstanceBasedLearner bruteForce = new InstanceBasedLearner(7, true, "brute");
+        InstanceBasedLearner kdTree = new InstanceBasedLearner(7, true, "kdtree");
+        bruteForce.train(features, labels);
+        kdTree.train(features, labels);
+        Assert.assertEquals(kdTree.measurePredictiveAccuracy(features, labels, null),
+                bruteForce.measurePredictiveAccuracy(features, labels, null), 0);
+    }
+
+    @Test
+    public void condensingKeepsFewerRowsThatStillClassifyTheTrainingSet() throws Exception {
+        InstanceBasedLearner learner = new InstanceBasedLearner(1, false, "auto", 16, 200, 50, "cnn");
+        learner.train(features, labels);
+        Assert.assertTrue(learner.getRetainedFraction() < 0.5);
+        // Every row is classified correctly by its nearest kept row, unless an identical row has another label
+        Assert.assertTrue(learner.measurePredictiveAccuracy(features, labels, null) > 0.97);
+    }
+
+    @Test
+    public void editingDropsAFewNoisyRows() throws Exception {
+        InstanceBasedLearner edited = new InstanceBasedLearner(3, false, "auto", 16, 200, 50, "enn");
+        edited.train(features, labels);
+        Assert.assertTrue(edited.getRetainedFraction() < 1);
+        Assert.assertTrue(edited.getRetainedFraction() > 0.8);
+    }
+}
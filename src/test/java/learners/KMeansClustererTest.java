@@ -0,0 +1,53 @@
+package learners;
+
+import java.util.Random;
+
+import org.junit.*;
+import toolkit.DataMatrix;
+
+public class KMeansClustererTest {
+    private DataMatrix iris;
+
+    @Before
+    public void setUp() throws Exception {
+        iris = new DataMatrix();
+        iris.loadArff("datasets/iris.arff");
+    }
+
+    @Test
+    public void everyRowEndsInItsNearestCluster() throws Exception {
+        KMeansClusterer clusterer = new KMeansClusterer(new Random(1), 8, 100);
+        clusterer.cluster(iris);
+        Assert.assertTrue(clusterer.getIterationCount() < 100);
+        double[][] centroids = clusterer.getCentroids();
+        int[] assignments = clusterer.getAssignments();
+        for (int row = 0; row < iris.getRowCount(); row++) {
+            double assigned = clusterer.space.squaredDistance(centroids[assignments[row]], row);
+            for (double[] centroid : centroids)
+                Assert.assertTrue(assigned <= clusterer.space.squaredDistance(centroid, row) + 1e-12);
+        }
+    }
+
+    @Test
+    public void sameSeedGivesSameClusters() throws Exception {
+        KMeansClusterer first = new KMeansClusterer(new Random(7), 3, 100);
+        KMeansClusterer second = new KMeansClusterer(new Random(7), 3, 100);
+        first.cluster(iris);
+        second.cluster(iris);
+        Assert.assertArrayEquals(first.getAssignments(), second.getAssignments());
+        Assert.assertEquals(first.getSse(), second.getSse(), 0);
+    }
+
+    @Test
+    public void missingValuesAreClustered() throws Exception {
+        DataMatrix vote = new DataMatrix();
+        vote.loadArff("datasets/vote.arff");
+        KMeansClusterer clusterer = new KMeansClusterer(new Random(3), 2, 100);
+        clusterer.cluster(vote);
+        // The two parties split the votes, so the two clusters should be of similar size
+        int inFirst = 0;
+        for (int cluster : clusterer.getAssignments())
+            inFirst += cluster == 0 ? 1 : 0;
+        Assert.assertTrue(inFirst > vote.getRowCount() / 4 && inFirst < vote.getRowCount() * 3 / 4);
+    }
+}
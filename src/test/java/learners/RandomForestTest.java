@@ -0,0 +1,47 @@
+package learners;
+
+import org.junit.*;
+import toolkit.BaselineLearner;
+import toolkit.DataMatrix;
+
+import java.util.Random;
+
+public class RandomForestTest {
+    private DataMatrix features;
+    private DataMatrix labels;
+
+    @Before
+    public void setUp() throws Exception {
+        DataMatrix data = new DataMatrix();
+        data.loadArff("datasets/vote.arff");
+        features = new DataMatrix(data, 0, 0, data.getRowCount(), data.getColCount() - 1);
+        labels = new DataMatrix(data, 0, data.getColCount() - 1, data.getRowCount(), 1);
+    }
+
+    @Test
+    public void sameSeedGivesSameForest() throws Exception {
+        RandomForest first = new RandomForest(new Random(7), 25, true);
+        RandomForest second = new RandomForest(new Random(7), 25, true);
+        first.train(features, labels);
+        second.train(features, labels);
+        Assert.assertEquals(first.getOutOfBagAccuracy(), second.getOutOfBagAccuracy(), 0);
+        Assert.assertEquals(first.measurePredictiveAccuracy(features, labels, null),
+                second.measurePredictiveAccuracy(features, labels, null), 0);
+    }
+
+    @Test
+    public void outOfBagAccuracyBeatsBaseline() throws Exception {
+        RandomForest forest = new RandomForest(new Random(7), 25, true);
+        forest.train(features, labels);
+        BaselineLearner baseline = new BaselineLearner();
+        baseline.train(features, labels);
+        Assert.assertTrue(forest.getOutOfBagAccuracy() > baseline.measurePredictiveAccuracy(features, labels, null));
+    }
+
+    @Test
+    public void bagsAnyLearner() throws Exception {
+        RandomForest bagged = new RandomForest(new Random(7), 5, () -> new BaselineLearner());
+        bagged.train(features, labels);
+        Assert.assertTrue(bagged.measurePredictiveAccuracy(features, labels, null) > 0.5);
+    }
+}
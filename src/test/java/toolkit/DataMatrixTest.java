@@ -0,0 +1,86 @@
+package toolkit;
+
+import org.junit.*;
+
+public class DataMatrixTest {
+    private DataMatrix vote;
+
+    @Before
+    public void setUp() throws Exception {
+        vote = new DataMatrix();
+        vote.loadArff("datasets/vote.arff");
+    }
+
+    @Test
+    public void isMissingFollowsTheData() throws Exception {
+        for (int row = 0; row < vote.getRowCount(); row++) {
+            for (int col = 0; col < vote.getColCount(); col++)
+                Assert.assertEquals(vote.getValueAt(row, col) == DataMatrix.MISSING, vote.isMissing(row, col));
+        }
+        Assert.assertFalse(vote.hasMissingValues(vote.getColCount() - 1));
+        vote.setValue(70, vote.getColCount() - 1, DataMatrix.MISSING);
+        Assert.assertTrue(vote.isMissing(70, vote.getColCount() - 1));
+        Assert.assertTrue(vote.hasMissingValues(vote.getColCount() - 1));
+        vote.setValue(70, vote.getColCount() - 1, 0);
+        Assert.assertFalse(vote.isMissing(70, vote.getColCount() - 1));
+    }
+
+    private static void assertMissingFollowsTheData(DataMatrix matrix) {
+        for (int row = 0; row < matrix.getRowCount(); row++) {
+            for (int col = 0; col < matrix.getColCount(); col++)
+                Assert.assertEquals(matrix.getValueAt(row, col) == DataMatrix.MISSING, matrix.isMissing(row, col));
+        }
+    }
+
+    @Test
+    public void viewsAndTheirParentSeeEachOthersWrites() throws Exception {
+        int[] rows = new int[200];
+        for (int i = 0; i < rows.length; i++)
+            rows[i] = (i * 37) % vote.getRowCount();
+        vote.isMissing(0, 0);
+        DataMatrix view = new DataMatrix(vote, rows);
+        assertMissingFollowsTheData(view);
+
+        int col = vote.getColCount() - 1;
+        view.setValue(5, col, DataMatrix.MISSING);
+        Assert.assertTrue(vote.isMissing(rows[5], col));
+        assertMissingFollowsTheData(vote);
+        vote.setValue(rows[5], col, 1);
+        Assert.assertFalse(view.isMissing(5, col));
+        vote.setValue(rows[9], 0, DataMatrix.MISSING);
+        Assert.assertTrue(view.hasMissingValues(0));
+        assertMissingFollowsTheData(view);
+    }
+
+    @Test
+    public void columnStatisticsSkipMissingValues() throws Exception {
+        for (int col = 0; col < vote.getColCount(); col++) {
+            double sum = 0;
+            int count = 0;
+            int[] valueCounts = new int[vote.getValueCountForAttributeAtColumn(col)];
+            for (int row = 0; row < vote.getRowCount(); row++) {
+                double v = vote.getValueAt(row, col);
+                if (v != DataMatrix.MISSING) {
+                    sum += v;
+                    count++;
+                    valueCounts[(int) v]++;
+                }
+            }
+            Assert.assertEquals(sum / count, vote.getColumnMean(col), 1e-12);
+            Assert.assertEquals(valueCounts[1] > valueCounts[0] ? 1 : 0, vote.getMostCommonValueForColumn(col), 0);
+            Assert.assertEquals(0, vote.getColumnMin(col), 0);
+            Assert.assertEquals(1, vote.getColumnMax(col), 0);
+        }
+    }
+
+    @Test
+    public void normalizingMapsContinuousColumnsOntoTheUnitInterval() throws Exception {
+        DataMatrix iris = new DataMatrix();
+        iris.loadArff("datasets/iris.arff");
+        iris.normalize();
+        for (int col = 0; col < iris.getColCount() - 1; col++) {
+            Assert.assertEquals(0, iris.getColumnMin(col), 1e-12);
+            Assert.assertEquals(1, iris.getColumnMax(col), 1e-12);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package toolkit;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.*;
+
+public class DataWriterTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("datawriter").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    private static void assertSameMatrix(DataMatrix expected, DataMatrix actual) {
+        Assert.assertEquals(expected.getRowCount(), actual.getRowCount());
+        Assert.assertEquals(expected.getColCount(), actual.getColCount());
+        for (int col = 0; col < expected.getColCount(); col++) {
+            Assert.assertEquals(expected.getAttributeNameAtColumn(col), actual.getAttributeNameAtColumn(col));
+            Assert.assertEquals(expected.getValueCountForAttributeAtColumn(col), actual.getValueCountForAttributeAtColumn(col));
+            for (int value = 0; value < expected.getValueCountForAttributeAtColumn(col); value++)
+                Assert.assertEquals(expected.getAttributeValueName(col, value), actual.getAttributeValueName(col, value));
+        }
+        for (int row = 0; row < expected.getRowCount(); row++)
+            Assert.assertArrayEquals(expected.getRow(row), actual.getRow(row), 0);
+    }
+
+    @Test
+    public void arffAndBinaryFilesReadBackTheSameMatrix() throws Exception {
+        for (String dataset : new String[] { "datasets/vote.arff", "datasets/iris.arff" }) {
+            DataMatrix original = new DataMatrix();
+            original.loadArff(dataset);
+            // Values that take the slow path of the number formatting
+            original.setValue(0, 0, original.isAttributeAtColumnContinuous(0) ? -0.1234567891 : 1);
+            original.setValue(1, 0, original.isAttributeAtColumnContinuous(0) ? 12345678.5 : 0);
+
+            String arff = new File(directory, "copy.arff").getPath();
+            DataWriter.write(original, arff);
+            DataMatrix fromArff = new DataMatrix();
+            fromArff.loadArff(arff);
+            assertSameMatrix(original, fromArff);
+
+            String binary = new File(directory, "copy.bin").getPath();
+            DataWriter.write(original, binary);
+            DataMatrix fromBinary = new DataMatrix();
+            fromBinary.loadBinary(binary);
+            assertSameMatrix(original, fromBinary);
+        }
+    }
+
+    @Test
+    public void predictionsAreWrittenAfterTheLabels() throws Exception {
+        DataMatrix iris = new DataMatrix();
+        iris.loadArff("datasets/iris.arff");
+        DataMatrix features = new DataMatrix(iris, 0, 0, iris.getRowCount(), iris.getColCount() - 1);
+        DataMatrix labels = new DataMatrix(iris, 0, iris.getColCount() - 1, iris.getRowCount(), 1);
+        SupervisedLearner tree = new learners.DecisionTree();
+        tree.train(features, labels);
+
+        String csv = new File(directory, "predictions.csv").getPath();
+        DataWriter.writePredictions(tree, features, labels, csv);
+        List<String> lines = Files.readAllLines(new File(csv).toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals(iris.getRowCount() + 1, lines.size());
+        Assert.assertTrue(lines.get(0).endsWith(labels.getAttributeNameAtColumn(0) + ",prediction"));
+        double[] prediction = new double[1];
+        for (int row = 0; row < iris.getRowCount(); row++) {
+            tree.predictInstanceLabelsFromFeatures(features.getRow(row), prediction);
+            String[] cells = lines.get(row + 1).split(",");
+            Assert.assertEquals(iris.getColCount() + 1, cells.length);
+            Assert.assertEquals(Double.toString(features.getValueAt(row, 0)), cells[0]);
+            Assert.assertEquals(labels.getAttributeValueName(0, (int) labels.getValueAt(row, 0)), cells[cells.length - 2]);
+            Assert.assertEquals(labels.getAttributeValueName(0, (int) prediction[0]), cells[cells.length - 1]);
+        }
+    }
+}
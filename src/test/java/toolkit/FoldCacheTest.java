@@ -0,0 +1,124 @@
+package toolkit;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.*;
+
+public class FoldCacheTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("foldcache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    // A learner holding state that Java serialization rejects
+    static class UnserializableLearner extends BaselineLearner {
+        private static final long serialVersionUID = 1L;
+
+        final Object state = new Object();
+    }
+
+    @Test
+    public void cachedModelPredictsLikeTheOriginal() throws Exception {
+        DataMatrix iris = new DataMatrix();
+        iris.loadArff("datasets/iris.arff");
+        DataMatrix features = new DataMatrix(iris, 0, 0, iris.getRowCount(), iris.getColCount() - 1);
+        DataMatrix labels = new DataMatrix(iris, 0, iris.getColCount() - 1, iris.getRowCount(), 1);
+        FoldCache cache = new FoldCache(directory.getPath(), 1 << 24);
+        SupervisedLearner[] learners = {
+            new learners.DecisionTree(),
+            new learners.RandomForest(new Random(1), 10, true),
+            new learners.InstanceBasedLearner(3, false, "hnsw"),
+        };
+        for (int i = 0; i < learners.length; i++) {
+            learners[i].train(features, labels);
+            String key = "model" + i;
+            Assert.assertTrue(cache.put(key, 0.5, learners[i]));
+            Assert.assertEquals(0.5, cache.getAccuracy(key), 0);
+            SupervisedLearner cached = cache.getModel(key);
+            Assert.assertEquals(learners[i].measurePredictiveAccuracy(features, labels, null), cached.measurePredictiveAccuracy(features, labels, null), 0);
+        }
+    }
+
+    @Test
+    public void unserializableModelLeavesTheAccuracyCached() throws Exception {
+        FoldCache cache = new FoldCache(directory.getPath(), 1 << 20);
+        Assert.assertFalse(cache.put("a", 0.75, new UnserializableLearner()));
+        Assert.assertEquals(0.75, cache.getAccuracy("a"), 0);
+        Assert.assertNull(cache.getModel("a"));
+        Assert.assertEquals(1, directory.listFiles().length);
+    }
+
+    @Test
+    public void cachedAccuracyIsReadBackUnderItsKey() throws Exception {
+        DataMatrix iris = new DataMatrix();
+        iris.loadArff("datasets/iris.arff");
+        FoldCache cache = new FoldCache(directory.getPath(), 1 << 20);
+        int[] rows = iris.shuffleRowOrder(new Random(1));
+        String key = FoldCache.key(FoldCache.fingerprint(iris), 1, "decisiontree", new TreeMap<String, String>(), rows, 0, 15);
+        Assert.assertNull(cache.getAccuracy(key));
+        cache.put(key, 0.5, null);
+        Assert.assertEquals(0.5, cache.getAccuracy(key), 0);
+        // Any change to the fold makes another key
+        Assert.assertNotEquals(key, FoldCache.key(FoldCache.fingerprint(iris), 1, "decisiontree", new TreeMap<String, String>(), rows, 0, 16));
+    }
+
+    private static double[] crossValidate(FoldCache cache) throws Exception {
+        DataMatrix vote = new DataMatrix();
+        vote.loadArff("datasets/vote.arff");
+        return new MLSystemManager().crossValidate(vote, "randomforest", 7, new Random(7), 5, cache);
+    }
+
+    @Test
+    public void cacheDoesNotChangeCrossValidationAccuracies() throws Exception {
+        double[] uncached = crossValidate(null);
+        FoldCache cache = new FoldCache(directory.getPath(), 1 << 24);
+        Assert.assertArrayEquals(uncached, crossValidate(cache), 0);
+        Assert.assertEquals(5, directory.listFiles().length);
+        Assert.assertArrayEquals(uncached, crossValidate(cache), 0);
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+        // An entry without a model takes 9 bytes (the accuracy and the flag), so three fit
+        FoldCache cache = new FoldCache(directory.getPath(), 27);
+        cache.put("a", 0.25, null);
+        new File(directory, "a.fold").setLastModified(1000);
+        cache.put("b", 0.25, null);
+        new File(directory, "b.fold").setLastModified(2000);
+        cache.put("c", 0.25, null);
+        new File(directory, "c.fold").setLastModified(3000);
+        Assert.assertNotNull(cache.getAccuracy("a")); // now the most recently used
+        cache.put("d", 0.25, null);
+        Assert.assertNotNull(cache.getAccuracy("a"));
+        Assert.assertNull(cache.getAccuracy("b"));
+        Assert.assertNotNull(cache.getAccuracy("c"));
+        Assert.assertNotNull(cache.getAccuracy("d"));
+    }
+
+    @Test
+    public void entriesAlreadyOnDiskCountTowardTheLimit() throws Exception {
+        FoldCache first = new FoldCache(directory.getPath(), 27);
+        first.put("a", 0.25, null);
+        new File(directory, "a.fold").setLastModified(1000);
+        first.put("b", 0.25, null);
+        first.put("c", 0.25, null);
+        FoldCache second = new FoldCache(directory.getPath(), 27);
+        Assert.assertEquals(27, second.totalBytes);
+        second.put("d", 0.25, null);
+        Assert.assertEquals(27, second.totalBytes);
+        Assert.assertNull(second.getAccuracy("a"));
+        Assert.assertNotNull(second.getAccuracy("d"));
+    }
+}
@@ -0,0 +1,55 @@
+package toolkit;
+
+import org.junit.*;
+
+public class PreprocessorTest {
+    private DataMatrix loadArff(String filename) throws Exception {
+        DataMatrix data = new DataMatrix();
+        data.loadArff(filename);
+        return data;
+    }
+
+    @Test
+    public void zscoreScalingGivesMeanZeroAndUnitDeviation() throws Exception {
+        DataMatrix iris = loadArff("datasets/iris.arff");
+        Preprocessor preprocessor = new Preprocessor(true, true, "zscore", 1);
+        preprocessor.fit(iris);
+        DataMatrix scaled = preprocessor.transform(iris);
+        Assert.assertEquals(iris.getColCount(), scaled.getColCount());
+        for (int col = 0; col < scaled.getColCount() - 1; col++) {
+            double mean = scaled.getColumnMean(col);
+            double sumOfSquares = 0;
+            for (int row = 0; row < scaled.getRowCount(); row++)
+                sumOfSquares += (scaled.getValueAt(row, col) - mean) * (scaled.getValueAt(row, col) - mean);
+            Assert.assertEquals(0, mean, 1e-9);
+            Assert.assertEquals(1, sumOfSquares / scaled.getRowCount(), 1e-9);
+        }
+        // The label is left as it is
+        Assert.assertEquals(3, scaled.getValueCountForAttributeAtColumn(scaled.getColCount() - 1));
+    }
+
+    @Test
+    public void oneHotEncodingImputesMissingVotes() throws Exception {
+        DataMatrix vote = loadArff("datasets/vote.arff");
+        Preprocessor preprocessor = new Preprocessor(true, true, "none", 1);
+        preprocessor.fit(vote);
+        DataMatrix encoded = preprocessor.transform(vote);
+        Assert.assertEquals(2 * (vote.getColCount() - 1) + 1, encoded.getColCount());
+        for (int row = 0; row < encoded.getRowCount(); row++) {
+            for (int col = 0; col < encoded.getColCount() - 1; col += 2)
+                Assert.assertEquals(1, encoded.getValueAt(row, col) + encoded.getValueAt(row, col + 1), 0);
+        }
+    }
+
+    @Test
+    public void sparseOutputMatchesDenseOutput() throws Exception {
+        DataMatrix vote = loadArff("datasets/vote.arff");
+        Preprocessor preprocessor = new Preprocessor(true, false, "minmax", 1);
+        preprocessor.fit(vote);
+        DataMatrix dense = preprocessor.transform(vote);
+        SparseMatrix sparse = preprocessor.transformSparse(vote);
+        Assert.assertTrue(sparse.getNonZeroCount() < dense.getRowCount() * dense.getColCount());
+        for (int row = 0; row < dense.getRowCount(); row++)
+            Assert.assertArrayEquals(dense.getRow(row), sparse.getDenseRow(row), 0);
+    }
+}